@@ -110,5 +110,46 @@ public abstract class Device
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
 	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
 	
+	/**
+	 * Send a raw Ethernet frame out a specific interface.
+	 * @param frame buffer holding a complete Ethernet frame
+	 * @param offset index of the frame's first byte in the buffer
+	 * @param length number of bytes in the frame
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendFrame(byte[] frame, int offset, int length, 
+			Iface iface)
+	{ return this.vnsComm.sendFrame(frame, offset, length, iface.getName()); }
+	
+	/**
+	 * Decide whether to handle a received Ethernet frame, before the frame 
+	 * is parsed. Devices can override this to drop unwanted frames cheaply.
+	 * @param frame buffer holding the frame
+	 * @param offset index of the frame's first byte in the buffer
+	 * @param length number of bytes in the frame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame should be parsed and handled, false if it 
+	 *         should be dropped
+	 */
+	public boolean admitFrame(byte[] frame, int offset, int length, 
+			Iface inIface)
+	{ return true; }
+	
+	/**
+	 * Handle a received Ethernet frame directly from its bytes, before it is
+	 * parsed. Devices can override this to handle common frames without 
+	 * building packet objects; the frame may be changed in place.
+	 * @param frame buffer holding the frame
+	 * @param offset index of the frame's first byte in the buffer
+	 * @param length number of bytes in the frame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was handled, false if it should be parsed 
+	 *         and passed to handlePacket
+	 */
+	public boolean handleFrame(byte[] frame, int offset, int length, 
+			Iface inIface)
+	{ return false; }
+	
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
 }
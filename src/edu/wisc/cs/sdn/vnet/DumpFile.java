@@ -78,16 +78,20 @@ public class DumpFile
 	public void dump(Ethernet etherPacket)
 	{
 		byte[] buf = etherPacket.serialize();
-		
+		this.dump(buf, 0, buf.length);
+	}
+	
+	public synchronized void dump(byte[] frame, int offset, int length)
+	{
 		int sec = (int)(System.currentTimeMillis()/1000);
 		int usec = (int)((System.currentTimeMillis() % 1000)*1000);
 		try
 		{
 			this.outStream.writeInt(sec);
 			this.outStream.writeInt(usec);
-			this.outStream.writeInt(buf.length);
-			this.outStream.writeInt(buf.length);
-			this.outStream.write(buf);
+			this.outStream.writeInt(length);
+			this.outStream.writeInt(length);
+			this.outStream.write(frame, offset, length);
 			this.outStream.flush();
 		}
 		catch (IOException e)
@@ -1,5 +1,6 @@
 package edu.wisc.cs.sdn.vnet;
 
+import edu.wisc.cs.sdn.vnet.rt.RouteTable;
 import edu.wisc.cs.sdn.vnet.rt.Router;
 import edu.wisc.cs.sdn.vnet.sw.Switch;
 import edu.wisc.cs.sdn.vnet.vns.Command;
@@ -9,14 +10,24 @@ public class Main
 {
 	private static final short DEFAULT_PORT = 8888;
 	private static final String DEFAULT_SERVER = "localhost";
+	private static final int DEFAULT_ROUTE_CACHE_SIZE = 4096;
+	private static final int DEFAULT_ARP_TIMEOUT = 60;
+	private static final int DEFAULT_WORKERS = 0;
 	
 	public static void main(String[] args)
 	{
 		String host = null;
 		String server = DEFAULT_SERVER;
 		String routeTableFile = null;
+		String routeSnapshotFile = null;
+		boolean watchRouteTable = false;
 		String arpCacheFile = null;
+		String arpStateFile = null;
 		String logfile = null;
+		String fibEngine = null;
+		int routeCacheSize = DEFAULT_ROUTE_CACHE_SIZE;
+		int arpTimeout = DEFAULT_ARP_TIMEOUT;
+		int workers = DEFAULT_WORKERS;
 		short port = DEFAULT_PORT;
 		VNSComm vnsComm = null;
 		Device dev = null;
@@ -40,8 +51,22 @@ public class Main
 			{ logfile = args[++i]; }
 			else if (arg.equals("-r"))
 			{ routeTableFile = args[++i]; }
+			else if (arg.equals("-rsnap"))
+			{ routeSnapshotFile = args[++i]; }
+			else if (arg.equals("-rwatch"))
+			{ watchRouteTable = true; }
 			else if (arg.equals("-a"))
 			{ arpCacheFile = args[++i]; }
+			else if (arg.equals("-astate"))
+			{ arpStateFile = args[++i]; }
+			else if (arg.equals("-atimeout"))
+			{ arpTimeout = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-fib"))
+			{ fibEngine = args[++i]; }
+			else if (arg.equals("-rcache"))
+			{ routeCacheSize = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-w"))
+			{ workers = Integer.parseInt(args[++i]); }
 		}
 		
 		if (null == host)
@@ -68,6 +93,17 @@ public class Main
 		{
 			// Create router instance
 			dev = new Router(host, dump);
+			
+			// Select route lookup engine
+			if (fibEngine != null 
+					&& !((Router)dev).getRouteTable().setEngine(fibEngine))
+			{
+				System.err.println("Unknown route lookup engine "+fibEngine);
+				usage();
+				return;
+			}
+			((Router)dev).getRouteTable().setCacheSize(routeCacheSize);
+			((Router)dev).getArpCache().setTimeout(arpTimeout * 1000L);
 		}
 		else 
 		{
@@ -85,18 +121,42 @@ public class Main
 		
 		if (dev instanceof Router) 
 		{
-			// Read static route table
-			if (routeTableFile != null)
-			{ ((Router)dev).loadRouteTable(routeTableFile); }
-			
 			// Read static ACP cache
 			if (arpCacheFile != null)
 			{ ((Router)dev).loadArpCache(arpCacheFile); }
+			
+			// Restore learned ARP entries from the last run
+			if (arpStateFile != null)
+			{ ((Router)dev).loadArpState(arpStateFile); }
+			
+			// Read static route table, or its snapshot; gateways missing 
+			// from the ARP cache are resolved as soon as their routes are in
+			if (routeSnapshotFile != null)
+			{ 
+				((Router)dev).loadRouteTable(routeTableFile, 
+						routeSnapshotFile); 
+			}
+			else if (routeTableFile != null)
+			{ ((Router)dev).loadRouteTable(routeTableFile); }
+			
+			// Reload the route table when its file changes
+			if (watchRouteTable && routeTableFile != null)
+			{ ((Router)dev).watchRouteTable(routeTableFile); }
+		}
+
+		// Handle frames on worker threads; only the router is thread safe
+		if (workers > 0)
+		{
+			if (dev instanceof Router)
+			{ vnsComm.startWorkers(workers); }
+			else
+			{ System.err.println("Ignoring -w; only routers use workers"); }
 		}
 
 		// Read messages from the server until the server closes the connection
 		System.out.println("<-- Ready to process packets -->");
 		while (vnsComm.readFromServer());
+		vnsComm.stopWorkers();
 		
 		// Shutdown the router
 		dev.destroy();
@@ -107,7 +167,16 @@ public class Main
 		System.out.println("Virtual Network Client");
 		System.out.println("VNet -v host [-s server] [-p port] [-h]");
 		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
+		System.out.println("     [-rsnap route_snapshot] [-rwatch] [-atimeout seconds]");
+		System.out.println("     [-astate arp_state] [-w workers]");
+		System.out.println(String.format("     [-fib %s|%s] [-rcache entries]", 
+				RouteTable.ENGINE_TRIE, RouteTable.ENGINE_DIR248));
 		System.out.println(String.format("  defaults server=%s port=%d", 
 				DEFAULT_SERVER, DEFAULT_PORT));
+		System.out.println(String.format("           fib=%s rcache=%d atimeout=%d", 
+				RouteTable.ENGINE_TRIE, DEFAULT_ROUTE_CACHE_SIZE, 
+				DEFAULT_ARP_TIMEOUT));
+		System.out.println(String.format("           workers=%d (0 handles "
+				+ "frames on the reading thread)", DEFAULT_WORKERS));
 	}
 }
@@ -0,0 +1,73 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import net.floodlightcontroller.packet.Ethernet;
+
+/**
+ * A resolved next hop out an interface, with the Ethernet header every IPv4
+ * packet sent to it needs, built once so packets can be given their header
+ * with a single copy. Adjacencies are immutable; a new one replaces an
+ * adjacency whose next hop changes MAC address.
+ */
+public class Adjacency
+{
+	/** Bytes in an Ethernet header without a VLAN tag */
+	public static final int HEADER_LENGTH = 14;
+
+	/** Interface out which packets are sent */
+	private final Iface iface;
+
+	/** IP address of the next hop */
+	private final int nextHop;
+
+	/** MAC address of the next hop, as a 48-bit long */
+	private final long mac;
+
+	/** Ethernet header for IPv4 packets sent to the next hop */
+	private final byte[] header;
+
+	/**
+	 * Create an adjacency and build its Ethernet header.
+	 * @param iface interface out which packets are sent
+	 * @param nextHop IP address of the next hop
+	 * @param mac MAC address of the next hop, as a 48-bit long
+	 */
+	public Adjacency(Iface iface, int nextHop, long mac)
+	{
+		this.iface = iface;
+		this.nextHop = nextHop;
+		this.mac = mac;
+		this.header = new byte[HEADER_LENGTH];
+		for (int i = 0; i < 6; i++)
+		{ this.header[i] = (byte)(mac >>> (8 * (5 - i))); }
+		System.arraycopy(iface.getMacAddress().toBytes(), 0, this.header, 6, 6);
+		this.header[12] = (byte)(Ethernet.TYPE_IPv4 >> 8);
+		this.header[13] = (byte)Ethernet.TYPE_IPv4;
+	}
+
+	/**
+	 * @return interface out which packets are sent
+	 */
+	public Iface getInterface()
+	{ return this.iface; }
+
+	/**
+	 * @return IP address of the next hop
+	 */
+	public int getNextHop()
+	{ return this.nextHop; }
+
+	/**
+	 * @return MAC address of the next hop, as a 48-bit long
+	 */
+	public long getMac()
+	{ return this.mac; }
+
+	/**
+	 * Write the adjacency's Ethernet header at the start of a frame.
+	 * @param frame buffer holding the frame
+	 * @param offset index of the frame's first byte in the buffer
+	 */
+	public void writeHeader(byte[] frame, int offset)
+	{ System.arraycopy(this.header, 0, frame, offset, HEADER_LENGTH); }
+}
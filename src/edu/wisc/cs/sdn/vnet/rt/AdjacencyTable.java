@@ -0,0 +1,258 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Adjacencies of a router, keyed by interface and next hop IP address. An
+ * adjacency is built the first time a packet is sent to a next hop, and
+ * rebuilt when the next hop's MAC address in the ARP cache changes, so
+ * packets normally find a ready-made Ethernet header.
+ * <p>
+ * Adjacencies are kept in open addressing arrays, like the ARP cache:
+ * writers take a lock, and readers check that no write happened while they
+ * probed, so finding an adjacency allocates nothing.
+ */
+public class AdjacencyTable
+{
+	/** Lock taken by writers, and validated by readers */
+	private final StampedLock lock;
+
+	/** Interfaces adjacencies use; an interface's index is part of a key;
+	 *  never modified once published */
+	private volatile Iface[] interfaces;
+
+	/** Key of each slot: interface index and next hop IP address */
+	private long[] keys;
+
+	/** Adjacency in each slot; null if the slot is empty */
+	private Adjacency[] adjacencies;
+
+	/** Number of adjacencies; guarded by the lock */
+	private int size;
+
+	/**
+	 * Initialize an empty adjacency table.
+	 */
+	public AdjacencyTable()
+	{
+		this.lock = new StampedLock();
+		this.interfaces = new Iface[0];
+		this.keys = new long[16];
+		this.adjacencies = new Adjacency[16];
+		this.size = 0;
+	}
+
+	/**
+	 * @return number of adjacencies
+	 */
+	public int size()
+	{
+		long stamp = this.lock.readLock();
+		try
+		{ return this.size; }
+		finally
+		{ this.lock.unlockRead(stamp); }
+	}
+
+	/**
+	 * Find the adjacency for a next hop out an interface, building it if
+	 * there is none or if the next hop's MAC address changed. Allocates
+	 * nothing unless the adjacency is built.
+	 * @param iface interface out which packets are sent
+	 * @param nextHop IP address of the next hop
+	 * @param mac current MAC address of the next hop, as a 48-bit long
+	 * @return the adjacency
+	 */
+	public Adjacency get(Iface iface, int nextHop, long mac)
+	{
+		int index = indexOf(this.interfaces, iface);
+		if (index >= 0)
+		{
+			long key = key(index, nextHop);
+			long stamp = this.lock.tryOptimisticRead();
+			Adjacency adjacency = this.probe(key);
+			if (!this.lock.validate(stamp))
+			{
+				// A writer changed the table while we probed, so probe again
+				// while keeping writers out
+				stamp = this.lock.readLock();
+				try
+				{ adjacency = this.probe(key); }
+				finally
+				{ this.lock.unlockRead(stamp); }
+			}
+			if (adjacency != null && adjacency.getMac() == mac)
+			{ return adjacency; }
+		}
+
+		Adjacency adjacency = new Adjacency(iface, nextHop, mac);
+		long stamp = this.lock.writeLock();
+		try
+		{ this.put(adjacency); }
+		finally
+		{ this.lock.unlockWrite(stamp); }
+		return adjacency;
+	}
+
+	/**
+	 * Remove the adjacencies of next hops that are no longer in the ARP
+	 * cache, so the table does not keep neighbors that went away.
+	 * @param cache ARP cache of the router
+	 */
+	public void retain(ArpCache cache)
+	{
+		long stamp = this.lock.writeLock();
+		try
+		{
+			long[] stale = new long[16];
+			int staleCount = 0;
+			for (int i = 0; i < this.adjacencies.length; i++)
+			{
+				Adjacency adjacency = this.adjacencies[i];
+				if (adjacency != null
+						&& !cache.contains(adjacency.getNextHop()))
+				{
+					if (staleCount == stale.length)
+					{ stale = Arrays.copyOf(stale, 2 * staleCount); }
+					stale[staleCount++] = this.keys[i];
+				}
+			}
+
+			// Removing shifts adjacencies, so remove only after the scan
+			for (int n = 0; n < staleCount; n++)
+			{ this.remove(find(this.keys, this.adjacencies, stale[n])); }
+		}
+		finally
+		{ this.lock.unlockWrite(stamp); }
+	}
+
+	/**
+	 * Add or replace an adjacency. The caller must hold the write lock.
+	 */
+	private void put(Adjacency adjacency)
+	{
+		Iface iface = adjacency.getInterface();
+		int index = indexOf(this.interfaces, iface);
+		if (index < 0)
+		{
+			// Never grow an array readers may be using
+			Iface[] interfaces = Arrays.copyOf(this.interfaces,
+					this.interfaces.length + 1);
+			index = interfaces.length - 1;
+			interfaces[index] = iface;
+			this.interfaces = interfaces;
+		}
+
+		long key = key(index, adjacency.getNextHop());
+		int mask = this.keys.length - 1;
+		int i = slot(key, mask);
+		while (this.adjacencies[i] != null && this.keys[i] != key)
+		{ i = (i + 1) & mask; }
+		if (null == this.adjacencies[i])
+		{
+			this.size++;
+			this.keys[i] = key;
+		}
+		this.adjacencies[i] = adjacency;
+
+		// Keep the table at most half full
+		if (2 * this.size > this.keys.length)
+		{ this.resize(2 * this.keys.length); }
+	}
+
+	/**
+	 * Empty a slot, shifting later adjacencies in its probe sequence back
+	 * into the gap. The caller must hold the write lock.
+	 */
+	private void remove(int slot)
+	{
+		int mask = this.keys.length - 1;
+		int gap = slot;
+		for (int j = (gap + 1) & mask; this.adjacencies[j] != null;
+				j = (j + 1) & mask)
+		{
+			int home = slot(this.keys[j], mask);
+			if (((j - home) & mask) >= ((j - gap) & mask))
+			{
+				this.keys[gap] = this.keys[j];
+				this.adjacencies[gap] = this.adjacencies[j];
+				gap = j;
+			}
+		}
+		this.adjacencies[gap] = null;
+		this.size--;
+	}
+
+	/**
+	 * Move the adjacencies into new arrays. The caller must hold the write
+	 * lock.
+	 */
+	private void resize(int capacity)
+	{
+		long[] keys = new long[capacity];
+		Adjacency[] adjacencies = new Adjacency[capacity];
+		int mask = capacity - 1;
+		for (int i = 0; i < this.keys.length; i++)
+		{
+			if (null == this.adjacencies[i])
+			{ continue; }
+			int j = slot(this.keys[i], mask);
+			while (adjacencies[j] != null)
+			{ j = (j + 1) & mask; }
+			keys[j] = this.keys[i];
+			adjacencies[j] = this.adjacencies[i];
+		}
+		this.keys = keys;
+		this.adjacencies = adjacencies;
+	}
+
+	/**
+	 * @return the adjacency for a key; null if there is none
+	 */
+	private Adjacency probe(long key)
+	{
+		Adjacency[] adjacencies = this.adjacencies;
+		int i = find(this.keys, adjacencies, key);
+		return (i < 0) ? null : adjacencies[i];
+	}
+
+	/**
+	 * @return the slot holding a key; -1 if there is none
+	 */
+	private static int find(long[] keys, Adjacency[] adjacencies, long key)
+	{
+		// A reader may see the arrays of different sizes during a resize,
+		// and a table being changed, so stay in bounds and bound the probe
+		int mask = Math.min(keys.length, adjacencies.length) - 1;
+		int i = slot(key, mask);
+		for (int n = 0; n <= mask && adjacencies[i] != null; n++)
+		{
+			if (keys[i] == key)
+			{ return i; }
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the index of an interface; -1 if it has none
+	 */
+	private static int indexOf(Iface[] interfaces, Iface iface)
+	{
+		for (int i = 0; i < interfaces.length; i++)
+		{
+			if (interfaces[i] == iface)
+			{ return i; }
+		}
+		return -1;
+	}
+
+	private static long key(int index, int nextHop)
+	{ return ((long)index << 32) | (nextHop & 0xffffffffL); }
+
+	private static int slot(long key, int mask)
+	{ return (int)((key * 0x9e3779b97f4a7c15L) >>> 32) & mask; }
+}
@@ -4,8 +4,10 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -14,18 +16,177 @@ import net.floodlightcontroller.packet.MACAddress;
 
 /**
  * A cache of MAC address to IP address mappings.
+ * <p>
+ * Mappings are kept in parallel primitive arrays, keyed by IP address with
+ * open addressing and linear probing, and MAC addresses are stored as 48-bit
+ * longs, so a mapping takes no objects. Writers take a lock; readers do not,
+ * and instead check that no write happened while they probed, so looking up 
+ * a MAC address allocates nothing and never blocks on other readers.
+ * <p>
+ * Learned mappings age out a fixed time after they were added; mappings 
+ * loaded from a file are permanent. A mapping that has been used to forward 
+ * packets is due for refresh during the last quarter of its lifetime, so the
+ * router can confirm it before it expires and busy next hops never miss.
+ * <p>
+ * Resolutions that failed are remembered for a short hold-down time, so 
+ * packets to a neighbor that went away are rejected at once instead of 
+ * starting another round of ARP requests.
  * @author Aaron Gember-Jacobson
  */
 public class ArpCache
 {		
-	/** Entries in the cache; maps an IP address to an entry */
-	private Map<Integer,ArpEntry> entries;
+	/** Refresh requests sent for a mapping before letting it expire */
+	public static final int MAX_REFRESHES = 3;
+	
+	/** MAC address returned by lookupMac for a missing mapping */
+	public static final long NO_MAC = -1;
+	
+	/** MAC address returned by lookupMac for an IP address whose resolution
+	 *  failed recently */
+	public static final long FAILED = -2;
+	
+	/** Default time (in milliseconds) failed resolutions are remembered */
+	public static final long DEFAULT_HOLD_DOWN = 5000;
+	
+	/** Slot holds a mapping */
+	private static final byte FLAG_FULL = 1;
+	
+	/** Slot holds a permanent mapping */
+	private static final byte FLAG_PERMANENT = 2;
+	
+	/** Slot holds a failed resolution rather than a mapping */
+	private static final byte FLAG_FAILED = 4;
+	
+	/** Mappings in parallel arrays, indexed by slot */
+	private static class Table
+	{
+		/** IP address in each slot */
+		final int[] ips;
+		
+		/** MAC address in each slot */
+		final long[] macs;
+		
+		/** Time (in milliseconds since the epoch) each mapping was created */
+		final long[] times;
+		
+		/** FLAG_ bits of each slot; 0 if the slot is empty */
+		final byte[] flags;
+		
+		/** Number of refresh requests sent for each mapping */
+		final byte[] refreshes;
+		
+		/** Whether each mapping has been used to forward a packet; written
+		 *  by readers without the lock, so a mark may be lost or land on a
+		 *  neighboring slot while a writer moves mappings, which only costs
+		 *  a refresh */
+		final boolean[] used;
+		
+		/** Shift that turns a hash into a slot */
+		final int shift;
+		
+		Table(int capacity)
+		{
+			this.ips = new int[capacity];
+			this.macs = new long[capacity];
+			this.times = new long[capacity];
+			this.flags = new byte[capacity];
+			this.refreshes = new byte[capacity];
+			this.used = new boolean[capacity];
+			this.shift = 32 - Integer.numberOfTrailingZeros(capacity);
+		}
+		
+		/**
+		 * @return the slot holding an IP address; -1 if there is none
+		 */
+		int find(int ip)
+		{
+			int mask = this.flags.length - 1;
+			int i = (ip * 0x9e3779b9) >>> this.shift;
+			
+			// Bound the probe, since a reader may see a table being changed
+			for (int n = 0; n <= mask && this.flags[i] != 0; n++)
+			{
+				if (this.ips[i] == ip)
+				{ return i; }
+				i = (i + 1) & mask;
+			}
+			return -1;
+		}
+		
+		/**
+		 * @return the slot where an IP address's probe should start
+		 */
+		int home(int ip)
+		{ return (ip * 0x9e3779b9) >>> this.shift; }
+	}
+	
+	/** Lock taken by writers, and validated by readers */
+	private final StampedLock lock;
+	
+	/** Mappings in the cache; replaced when the cache grows */
+	private volatile Table table;
+	
+	/** Number of mappings in the cache; guarded by the lock */
+	private int size;
+	
+	/** Time (in milliseconds) learned mappings live; 0 if they never age */
+	private volatile long timeout;
+	
+	/** Time (in milliseconds) failed resolutions are remembered */
+	private volatile long holdDown;
 	
 	/**
 	 * Initializes an empty ARP cache for a router.
 	 */
 	public ArpCache()
-	{ this.entries = new ConcurrentHashMap<Integer,ArpEntry>(); }
+	{ 
+		this.lock = new StampedLock();
+		this.table = new Table(16);
+		this.size = 0;
+		this.timeout = 0;
+		this.holdDown = DEFAULT_HOLD_DOWN;
+	}
+	
+	/**
+	 * @return time (in milliseconds) learned mappings live; 0 if they never
+	 *         age out
+	 */
+	public long getTimeout()
+	{ return this.timeout; }
+	
+	/**
+	 * Set how long learned mappings live.
+	 * @param timeout time (in milliseconds) learned mappings live; 0 if they
+	 *        never age out
+	 */
+	public void setTimeout(long timeout)
+	{ this.timeout = Math.max(0, timeout); }
+	
+	/**
+	 * @return time (in milliseconds) failed resolutions are remembered
+	 */
+	public long getHoldDown()
+	{ return this.holdDown; }
+	
+	/**
+	 * Set how long failed resolutions are remembered.
+	 * @param holdDown time (in milliseconds) failed resolutions are 
+	 *        remembered; 0 to forget them at once
+	 */
+	public void setHoldDown(long holdDown)
+	{ this.holdDown = Math.max(0, holdDown); }
+	
+	/**
+	 * @return number of mappings in the cache
+	 */
+	public int size()
+	{
+		long stamp = this.lock.readLock();
+		try
+		{ return this.size; }
+		finally
+		{ this.lock.unlockRead(stamp); }
+	}
 	
 	/**
 	 * Insert an entry in the ARP cache for a specific IP address, MAC address
@@ -34,7 +195,94 @@ public class ArpCache
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public void insert(MACAddress mac, int ip)
-	{ this.entries.put(ip, new ArpEntry(mac, ip)); }
+	{ this.insert(ip, mac.toLong(), System.currentTimeMillis(), false); }
+	
+	/**
+	 * Insert or replace the mapping for an IP address. A permanent mapping 
+	 * is never replaced by a learned one.
+	 * @param ip IP address corresponding to MAC address
+	 * @param mac MAC address corresponding to IP address, as a 48-bit long
+	 * @param timeAdded time (in milliseconds since the epoch) the mapping 
+	 *        was created
+	 * @param permanent true if the mapping never ages out
+	 */
+	void insert(int ip, long mac, long timeAdded, boolean permanent)
+	{
+		long stamp = this.lock.writeLock();
+		try
+		{ this.put(ip, mac, timeAdded, permanent ? FLAG_PERMANENT : 0); }
+		finally
+		{ this.lock.unlockWrite(stamp); }
+	}
+	
+	/**
+	 * Record that resolving an IP address failed, unless a mapping for it 
+	 * was learned in the meantime. Lookups return FAILED for the IP address
+	 * until the hold-down time passes or a mapping is learned.
+	 * @param ip IP address that did not answer ARP requests
+	 */
+	public void fail(int ip)
+	{
+		if (0 == this.holdDown)
+		{ return; }
+		long stamp = this.lock.writeLock();
+		try
+		{
+			int i = this.table.find(ip);
+			if (i < 0 || (this.table.flags[i] & FLAG_FAILED) != 0)
+			{ this.put(ip, FAILED, System.currentTimeMillis(), FLAG_FAILED); }
+		}
+		finally
+		{ this.lock.unlockWrite(stamp); }
+	}
+	
+	/**
+	 * Find the MAC address for an IP address, and record that the mapping 
+	 * was used. Allocates nothing.
+	 * @param ip IP address whose MAC address is desired
+	 * @return the MAC address as a 48-bit long; NO_MAC if there is no 
+	 *         mapping for the IP address; FAILED if resolving the IP address
+	 *         failed recently
+	 */
+	public long lookupMac(int ip)
+	{
+		long stamp = this.lock.tryOptimisticRead();
+		Table t = this.table;
+		int i = t.find(ip);
+		long mac = (i < 0) ? NO_MAC : t.macs[i];
+		if (!this.lock.validate(stamp))
+		{
+			// A writer changed the table while we probed, so probe again
+			// while keeping writers out
+			stamp = this.lock.readLock();
+			try
+			{
+				t = this.table;
+				i = t.find(ip);
+				mac = (i < 0) ? NO_MAC : t.macs[i];
+			}
+			finally
+			{ this.lock.unlockRead(stamp); }
+		}
+		if (i >= 0 && !t.used[i])
+		{ t.used[i] = true; }
+		return mac;
+	}
+	
+	/**
+	 * Check whether the cache holds a mapping or a recent failed resolution
+	 * for an IP address, without recording a use.
+	 * @param ip IP address to check
+	 * @return true if there is an entry for the IP address, otherwise false
+	 */
+	public boolean contains(int ip)
+	{
+		long stamp = this.lock.readLock();
+		try
+		{ return this.table.find(ip) >= 0; }
+		finally
+		{ this.lock.unlockRead(stamp); }
+	}
 	
 	/**
 	 * Checks if an IP->MAC mapping is the in the cache.
@@ -42,7 +290,258 @@ public class ArpCache
 	 * @return the IP->MAC mapping from the cache; null if none exists 
 	 */
 	public ArpEntry lookup(int ip)
-	{ return this.entries.get(ip); }
+	{ 
+		long stamp = this.lock.readLock();
+		try
+		{
+			Table t = this.table;
+			int i = t.find(ip);
+			if (i < 0 || (t.flags[i] & FLAG_FAILED) != 0)
+			{ return null; }
+			t.used[i] = true;
+			return entry(t, i);
+		}
+		finally
+		{ this.lock.unlockRead(stamp); }
+	}
+	
+	/**
+	 * Remove the mapping for an IP address.
+	 * @return true if there was a mapping, otherwise false
+	 */
+	public boolean remove(int ip)
+	{
+		long stamp = this.lock.writeLock();
+		try
+		{
+			Table t = this.table;
+			int i = t.find(ip);
+			if (i < 0)
+			{ return false; }
+			this.removeSlot(t, i);
+			return true;
+		}
+		finally
+		{ this.lock.unlockWrite(stamp); }
+	}
+	
+	/**
+	 * @return all mappings in the cache
+	 */
+	public List<ArpEntry> getEntries()
+	{
+		List<ArpEntry> entries = new ArrayList<ArpEntry>();
+		long stamp = this.lock.readLock();
+		try
+		{
+			Table t = this.table;
+			for (int i = 0; i < t.flags.length; i++)
+			{
+				if (t.flags[i] != 0 && 0 == (t.flags[i] & FLAG_FAILED))
+				{ entries.add(entry(t, i)); }
+			}
+		}
+		finally
+		{ this.lock.unlockRead(stamp); }
+		return entries;
+	}
+	
+	/**
+	 * Remove mappings that have expired and failed resolutions whose 
+	 * hold-down has passed, and find used mappings that are due for refresh.
+	 * Each mapping is returned for refresh at most MAX_REFRESHES times.
+	 * <p>
+	 * The cache is scanned under the read lock, which does not disturb 
+	 * lookups, and the write lock is only taken to change the mappings the
+	 * scan found, if any.
+	 * @param now current time (in milliseconds since the epoch)
+	 * @return mappings to refresh
+	 */
+	public List<ArpEntry> age(long now)
+	{
+		List<ArpEntry> refresh = new ArrayList<ArpEntry>();
+		long timeout = this.timeout;
+		long holdDown = this.holdDown;
+		
+		// Find the IP addresses of mappings to remove or refresh
+		int[] expired = new int[16];
+		int expiredCount = 0;
+		int[] due = new int[16];
+		int dueCount = 0;
+		long stamp = this.lock.readLock();
+		try
+		{
+			Table t = this.table;
+			for (int i = 0; i < t.flags.length; i++)
+			{
+				if (isExpired(t, i, now, timeout, holdDown))
+				{
+					if (expiredCount == expired.length)
+					{ expired = Arrays.copyOf(expired, 2 * expiredCount); }
+					expired[expiredCount++] = t.ips[i];
+				}
+				else if (isDue(t, i, now, timeout))
+				{
+					if (dueCount == due.length)
+					{ due = Arrays.copyOf(due, 2 * dueCount); }
+					due[dueCount++] = t.ips[i];
+				}
+			}
+		}
+		finally
+		{ this.lock.unlockRead(stamp); }
+		if (0 == expiredCount && 0 == dueCount)
+		{ return refresh; }
+		
+		// Mappings may have been replaced since the scan, so check each 
+		// again before changing it
+		stamp = this.lock.writeLock();
+		try
+		{
+			Table t = this.table;
+			for (int n = 0; n < dueCount; n++)
+			{
+				int i = t.find(due[n]);
+				if (i >= 0 && isDue(t, i, now, timeout))
+				{
+					t.refreshes[i]++;
+					refresh.add(entry(t, i));
+				}
+			}
+			for (int n = 0; n < expiredCount; n++)
+			{
+				int i = t.find(expired[n]);
+				if (i >= 0 && isExpired(t, i, now, timeout, holdDown))
+				{ this.removeSlot(t, i); }
+			}
+		}
+		finally
+		{ this.lock.unlockWrite(stamp); }
+		return refresh;
+	}
+	
+	/**
+	 * @return true if a slot holds a learned mapping that has expired or a 
+	 *         failed resolution whose hold-down has passed, otherwise false
+	 */
+	private static boolean isExpired(Table t, int slot, long now, 
+			long timeout, long holdDown)
+	{
+		if (0 == t.flags[slot] || (t.flags[slot] & FLAG_PERMANENT) != 0)
+		{ return false; }
+		long age = now - t.times[slot];
+		if ((t.flags[slot] & FLAG_FAILED) != 0)
+		{ return age >= holdDown; }
+		return (timeout > 0 && age >= timeout);
+	}
+	
+	/**
+	 * @return true if a slot holds a used, learned mapping in the last 
+	 *         quarter of its lifetime that may be refreshed again, otherwise
+	 *         false
+	 */
+	private static boolean isDue(Table t, int slot, long now, long timeout)
+	{
+		if (0 == t.flags[slot] || (t.flags[slot] 
+				& (FLAG_PERMANENT | FLAG_FAILED)) != 0)
+		{ return false; }
+		long age = now - t.times[slot];
+		return (timeout > 0 && age < timeout 
+				&& age >= timeout - timeout / 4 && t.used[slot]
+				&& t.refreshes[slot] < MAX_REFRESHES);
+	}
+	
+	/**
+	 * Insert or replace the entry for an IP address; a permanent mapping is
+	 * only replaced by another. The caller must hold the write lock.
+	 * @param flags FLAG_PERMANENT or FLAG_FAILED, or 0 for a learned mapping
+	 */
+	private void put(int ip, long mac, long timeAdded, int flags)
+	{
+		Table t = this.table;
+		int i = t.find(ip);
+		if (i < 0)
+		{
+			int mask = t.flags.length - 1;
+			i = t.home(ip);
+			while (t.flags[i] != 0)
+			{ i = (i + 1) & mask; }
+			this.size++;
+		}
+		else if ((t.flags[i] & FLAG_PERMANENT) != 0 
+				&& 0 == (flags & FLAG_PERMANENT))
+		{ return; }
+		t.ips[i] = ip;
+		t.macs[i] = mac;
+		t.times[i] = timeAdded;
+		t.refreshes[i] = 0;
+		t.used[i] = false;
+		t.flags[i] = (byte)(FLAG_FULL | flags);
+		
+		// Keep the table at most half full
+		if (2 * this.size > t.flags.length)
+		{ this.table = this.copy(t, 2 * t.flags.length); }
+	}
+	
+	/**
+	 * Empty a slot, shifting later mappings in its probe sequence back into
+	 * the gap. The caller must hold the write lock.
+	 */
+	private void removeSlot(Table t, int slot)
+	{
+		int mask = t.flags.length - 1;
+		int gap = slot;
+		for (int j = (gap + 1) & mask; t.flags[j] != 0; j = (j + 1) & mask)
+		{
+			int home = t.home(t.ips[j]);
+			if (((j - home) & mask) >= ((j - gap) & mask))
+			{
+				t.ips[gap] = t.ips[j];
+				t.macs[gap] = t.macs[j];
+				t.times[gap] = t.times[j];
+				t.refreshes[gap] = t.refreshes[j];
+				t.used[gap] = t.used[j];
+				t.flags[gap] = t.flags[j];
+				gap = j;
+			}
+		}
+		t.flags[gap] = 0;
+		this.size--;
+	}
+	
+	/**
+	 * @return a table with the given capacity holding the mappings in a 
+	 *         table
+	 */
+	private Table copy(Table t, int capacity)
+	{
+		Table copy = new Table(capacity);
+		int mask = capacity - 1;
+		for (int i = 0; i < t.flags.length; i++)
+		{
+			if (0 == t.flags[i])
+			{ continue; }
+			int j = copy.home(t.ips[i]);
+			while (copy.flags[j] != 0)
+			{ j = (j + 1) & mask; }
+			copy.ips[j] = t.ips[i];
+			copy.macs[j] = t.macs[i];
+			copy.times[j] = t.times[i];
+			copy.refreshes[j] = t.refreshes[i];
+			copy.used[j] = t.used[i];
+			copy.flags[j] = t.flags[i];
+		}
+		return copy;
+	}
+	
+	/**
+	 * @return an entry for the mapping in a slot
+	 */
+	private static ArpEntry entry(Table t, int slot)
+	{
+		return new ArpEntry(MACAddress.valueOf(t.macs[slot]), t.ips[slot],
+				t.times[slot], (t.flags[slot] & FLAG_PERMANENT) != 0);
+	}
 	
 	/**
 	 * Populate the ARP cache from a file.
@@ -118,7 +617,7 @@ public class ArpCache
 			}
 			
 			// Add an entry to the ACP cache
-			this.insert(mac, ip);
+			this.insert(ip, mac.toLong(), System.currentTimeMillis(), true);
 		}
 	
 		// Close the file
@@ -129,7 +628,7 @@ public class ArpCache
 	public String toString()
 	{
         String result = "IP\t\tMAC\n";
-        for (ArpEntry entry : this.entries.values())
+        for (ArpEntry entry : this.getEntries())
         { result += entry.toString()+"\n"; }
 	    return result;
 	}
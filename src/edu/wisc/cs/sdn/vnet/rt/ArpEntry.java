@@ -18,16 +18,31 @@ public class ArpEntry
 	/** Time (in milliseconds since the epoch) the mapping was created */
 	private long timeAdded;
 	
+	/** Whether the mapping never ages out */
+	private boolean permanent;
+	
 	/**
 	 * Create an ARP table entry that maps an IP address to a MAC address.
 	 * @param mac MAC address corresponding to IP address
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public ArpEntry(MACAddress mac, int ip)
+	{ this(mac, ip, System.currentTimeMillis(), false); }
+	
+	/**
+	 * Create an ARP table entry that maps an IP address to a MAC address.
+	 * @param mac MAC address corresponding to IP address
+	 * @param ip IP address corresponding to MAC address
+	 * @param timeAdded time (in milliseconds since the epoch) the mapping 
+	 *        was created
+	 * @param permanent true if the mapping never ages out
+	 */
+	public ArpEntry(MACAddress mac, int ip, long timeAdded, boolean permanent)
 	{
 		this.mac = mac;
 		this.ip = ip;
-		this.timeAdded = System.currentTimeMillis();
+		this.timeAdded = timeAdded;
+		this.permanent = permanent;
 	}
 	
 	/**
@@ -48,6 +63,12 @@ public class ArpEntry
 	public long getTimeAdded()
 	{ return this.timeAdded; }
 	
+	/**
+	 * @return true if the mapping never ages out, otherwise false
+	 */
+	public boolean isPermanent()
+	{ return this.permanent; }
+	
 	public String toString()
 	{
 		return String.format("%s \t%s", IPv4.fromIPv4Address(this.ip),
@@ -0,0 +1,157 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Limits how many ARP packets the router handles from each source MAC
+ * address and on each interface, so a host spraying ARP packets cannot take
+ * the packet thread away from forwarding. ARP frames are policed from their
+ * raw bytes, before they are parsed.
+ * <p>
+ * Source MAC addresses are hashed into a fixed number of token buckets, so
+ * the policer's memory does not grow with the number of sources; a flood
+ * from many forged sources still meets the bucket of its interface.
+ * <p>
+ * The policer also limits how often unsolicited ARP packets on each 
+ * interface may change the ARP cache. Replies the router asked for are not
+ * limited, so a flood on one interface cannot keep next hops from resolving.
+ */
+public class ArpPolicer
+{
+	/** ARP packets handled per second from one source MAC address */
+	public static final int SOURCE_RATE = 20;
+
+	/** ARP packets handled at once from one source before it is policed */
+	public static final int SOURCE_BURST = 40;
+
+	/** ARP packets handled per second on one interface */
+	public static final int INTERFACE_RATE = 2000;
+
+	/** ARP packets handled at once on one interface before it is policed */
+	public static final int INTERFACE_BURST = 2000;
+
+	/** ARP mappings learned per second from unsolicited packets on one 
+	 *  interface */
+	public static final int LEARN_RATE = 1000;
+
+	/** ARP mappings learned at once from unsolicited packets on one 
+	 *  interface before the rate limit applies */
+	public static final int LEARN_BURST = 1000;
+
+	/** log2 of the number of source buckets */
+	private static final int SOURCE_BUCKET_BITS = 12;
+
+	/** Buckets of source MAC addresses */
+	private final HashedTokenBuckets sourceBuckets;
+
+	/** Bucket of each interface */
+	private final Map<Iface,TokenBucket> interfaceBuckets;
+
+	/** Bucket of unsolicited learning on each interface */
+	private final Map<Iface,TokenBucket> learnBuckets;
+
+	/** Number of ARP packets dropped by their source's bucket */
+	private long sourceDrops;
+
+	/** Number of ARP packets dropped by their interface's bucket */
+	private long interfaceDrops;
+
+	/** Number of unsolicited mappings not learned because of the limit */
+	private long learnDrops;
+
+	/**
+	 * Create a policer with full buckets.
+	 */
+	public ArpPolicer()
+	{
+		this.sourceBuckets = new HashedTokenBuckets(SOURCE_RATE, SOURCE_BURST,
+				SOURCE_BUCKET_BITS);
+		this.interfaceBuckets = new HashMap<Iface,TokenBucket>();
+		this.learnBuckets = new HashMap<Iface,TokenBucket>();
+		this.sourceDrops = 0;
+		this.interfaceDrops = 0;
+		this.learnDrops = 0;
+	}
+
+	/**
+	 * Decide whether to handle an ARP packet.
+	 * @param sourceMac source MAC address of the frame, as a 48-bit long
+	 * @param inIface the interface on which the frame was received
+	 * @param now current time, from System.nanoTime
+	 * @return true if the packet should be handled, false if it should be
+	 *         dropped
+	 */
+	public synchronized boolean admit(long sourceMac, Iface inIface, long now)
+	{
+		if (!this.sourceBuckets.tryTake(sourceMac, now))
+		{
+			this.sourceDrops++;
+			return false;
+		}
+
+		TokenBucket bucket = this.interfaceBuckets.get(inIface);
+		if (null == bucket)
+		{
+			bucket = new TokenBucket(INTERFACE_RATE, INTERFACE_BURST);
+			this.interfaceBuckets.put(inIface, bucket);
+		}
+		if (!bucket.tryTake(now))
+		{
+			this.interfaceDrops++;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Decide whether to learn the sender of an unsolicited ARP packet.
+	 * @param inIface the interface on which the packet was received
+	 * @param now current time, from System.nanoTime
+	 * @return true if the sender should be learned, otherwise false
+	 */
+	public synchronized boolean admitLearning(Iface inIface, long now)
+	{
+		TokenBucket bucket = this.learnBuckets.get(inIface);
+		if (null == bucket)
+		{
+			bucket = new TokenBucket(LEARN_RATE, LEARN_BURST);
+			this.learnBuckets.put(inIface, bucket);
+		}
+		if (!bucket.tryTake(now))
+		{
+			this.learnDrops++;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of ARP packets dropped by their source's bucket
+	 */
+	public synchronized long getSourceDrops()
+	{ return this.sourceDrops; }
+
+	/**
+	 * @return number of ARP packets dropped by their interface's bucket
+	 */
+	public synchronized long getInterfaceDrops()
+	{ return this.interfaceDrops; }
+
+	/**
+	 * @return number of unsolicited mappings not learned because of the 
+	 *         limit
+	 */
+	public synchronized long getLearnDrops()
+	{ return this.learnDrops; }
+
+	public synchronized String toString()
+	{
+		return String.format("ARP policer: %d packets dropped per source, "
+				+ "%d dropped per interface, %d unsolicited mappings not "
+				+ "learned", this.sourceDrops, this.interfaceDrops,
+				this.learnDrops);
+	}
+}
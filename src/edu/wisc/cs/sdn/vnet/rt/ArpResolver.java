@@ -0,0 +1,493 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.ICMP;
+import net.floodlightcontroller.packet.MACAddress;
+
+/**
+ * Resolves the MAC addresses of next hops that are not in the ARP cache.
+ * Packets for a next hop wait in a queue while ARP requests for it are sent
+ * out the interface the route chose, once a second. Packets that arrive 
+ * while a next hop is being resolved join its queue, so there is only ever
+ * one request in flight per interface and IP address, however many packets
+ * or threads are waiting. When a reply arrives the
+ * queue is sent, and only then is the mapping added to the ARP cache, so
+ * packets that find the mapping cannot overtake queued packets of their
+ * flow; after five unanswered requests the queued packets are
+ * dropped, their senders get an ICMP host unreachable message, and the
+ * failure is recorded in the ARP cache for a hold-down time. Queues are
+ * bounded per next hop and in total, so unresolvable next hops cannot use
+ * up memory.
+ * <p>
+ * The resolver also ages the ARP cache once a second, refreshing busy
+ * entries with a unicast ARP request before they expire, and can save the
+ * cache's learned entries periodically.
+ */
+public class ArpResolver
+{
+	/** Time between ARP requests for a next hop, in ms */
+	public static final long RETRY_INTERVAL = 1000;
+
+	/** Number of ARP requests sent for a next hop before giving up */
+	public static final int MAX_TRIES = 5;
+
+	/** Most packets queued for one next hop */
+	public static final int MAX_QUEUED_PER_HOP = 32;
+
+	/** Most packets queued for all next hops */
+	public static final int MAX_QUEUED = 1024;
+
+	/** Time between passes over the ARP cache, in ms */
+	public static final long AGING_INTERVAL = 1000;
+
+	/** Time between saves of the ARP cache's learned entries, in ms */
+	public static final long SAVE_INTERVAL = 30000;
+
+	/** A packet waiting for its next hop to be resolved */
+	private static class QueuedPacket
+	{
+		/** Ethernet frame to send */
+		final Ethernet etherPacket;
+
+		/** Interface on which the frame was received */
+		final Iface inIface;
+
+		QueuedPacket(Ethernet etherPacket, Iface inIface)
+		{
+			this.etherPacket = etherPacket;
+			this.inIface = inIface;
+		}
+	}
+
+	/** An outstanding resolution for a next hop */
+	private class Request implements Runnable
+	{
+		/** IP address of the next hop */
+		final int ip;
+
+		/** Interface out which requests and queued packets are sent */
+		final Iface iface;
+
+		/** Packets waiting for the next hop, oldest first */
+		final Deque<QueuedPacket> packets;
+
+		/** Number of ARP requests sent */
+		int tries;
+
+		/** Pending retry of the request */
+		ScheduledFuture<?> retry;
+
+		/** True once the next hop's MAC address is known and the queued
+		 *  packets are being sent */
+		boolean draining;
+
+		Request(int ip, Iface iface)
+		{
+			this.ip = ip;
+			this.iface = iface;
+			this.packets = new ArrayDeque<QueuedPacket>();
+			this.tries = 0;
+			this.retry = null;
+			this.draining = false;
+		}
+
+		public void run()
+		{ ArpResolver.this.retry(this); }
+	}
+
+	/** Router whose next hops are resolved */
+	private Router router;
+
+	/** Outstanding resolutions; maps an interface and a next hop IP address
+	 *  to its request; guarded by this resolver */
+	private Map<Iface,Map<Integer,Request>> requests;
+
+	/** Number of packets queued for all next hops; guarded by this resolver */
+	private int queued;
+
+	/** Number of packets dropped because a queue was full */
+	private long overflows;
+
+	/** Number of ARP requests sent for next hops */
+	private long requestsSent;
+
+	/** Number of packets that joined a resolution already in progress */
+	private long coalesced;
+
+	/** Timer that retries ARP requests */
+	private ScheduledExecutorService timer;
+
+	/**
+	 * Create a resolver for a router.
+	 * @param router router whose next hops are resolved
+	 */
+	public ArpResolver(Router router)
+	{
+		this.router = router;
+		this.requests = new HashMap<Iface,Map<Integer,Request>>();
+		this.queued = 0;
+		this.overflows = 0;
+		this.requestsSent = 0;
+		this.coalesced = 0;
+		this.timer = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+					public Thread newThread(Runnable r)
+					{
+						Thread thread = new Thread(r, "arp-resolver");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.timer.scheduleWithFixedDelay(new Runnable() {
+					public void run()
+					{ ArpResolver.this.age(); }
+				}, AGING_INTERVAL, AGING_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return number of packets dropped because a queue was full
+	 */
+	public synchronized long getOverflows()
+	{ return this.overflows; }
+
+	/**
+	 * @return number of ARP requests sent for next hops, not counting 
+	 *         refreshes of ARP cache entries
+	 */
+	public synchronized long getRequestsSent()
+	{ return this.requestsSent; }
+
+	/**
+	 * @return number of packets that joined a resolution already in progress
+	 *         instead of starting a new one
+	 */
+	public synchronized long getCoalesced()
+	{ return this.coalesced; }
+
+	/**
+	 * Hold a packet until the MAC address of its next hop is known, and
+	 * start resolving the next hop if it is not already being resolved. If
+	 * the next hop was resolved since the caller looked it up, the packet is
+	 * sent at once, after any packets that were queued for the next hop.
+	 * @param etherPacket Ethernet frame to send once the next hop is known;
+	 *        its source and destination MAC addresses are set when it is 
+	 *        sent
+	 * @param inIface interface on which the frame was received
+	 * @param nextHop IP address of the next hop
+	 * @param outIface interface out which to send the frame
+	 * @return true if the packet was queued or sent, false if it was dropped
+	 *         because a queue is full
+	 */
+	public boolean enqueue(Ethernet etherPacket, Iface inIface, int nextHop,
+			Iface outIface)
+	{
+		Request request;
+		long mac = ArpCache.NO_MAC;
+		synchronized(this)
+		{
+			Map<Integer,Request> ifaceRequests = this.requestsFor(outIface);
+			request = ifaceRequests.get(nextHop);
+
+			// A mapping is only added once its queue is sent, so a packet 
+			// that finds it can go at once
+			if (null == request)
+			{ mac = this.router.getArpCache().lookupMac(nextHop); }
+			if (mac < 0)
+			{
+				if ((request != null
+							&& request.packets.size() >= MAX_QUEUED_PER_HOP)
+						|| this.queued >= MAX_QUEUED)
+				{
+					this.overflows++;
+					return false;
+				}
+				if (request != null)
+				{
+					request.packets.addLast(
+							new QueuedPacket(etherPacket, inIface));
+					this.queued++;
+					this.coalesced++;
+					return true;
+				}
+
+				request = new Request(nextHop, outIface);
+				request.packets.addLast(
+						new QueuedPacket(etherPacket, inIface));
+				this.queued++;
+				ifaceRequests.put(nextHop, request);
+			}
+		}
+
+		if (null == request)
+		{
+			etherPacket.setSourceMACAddress(
+					outIface.getMacAddress().toBytes());
+			etherPacket.setDestinationMACAddress(
+					MACAddress.valueOf(mac).toBytes());
+			this.router.sendPacket(etherPacket, outIface);
+			return true;
+		}
+		this.retry(request);
+		return true;
+	}
+
+	/**
+	 * Start resolving a next hop before any packet needs it, unless it is
+	 * already being resolved.
+	 * @param nextHop IP address of the next hop
+	 * @param outIface interface out which to send ARP requests
+	 */
+	public void resolve(int nextHop, Iface outIface)
+	{
+		Request request;
+		synchronized(this)
+		{
+			Map<Integer,Request> ifaceRequests = this.requestsFor(outIface);
+			if (ifaceRequests.containsKey(nextHop))
+			{ return; }
+			request = new Request(nextHop, outIface);
+			ifaceRequests.put(nextHop, request);
+		}
+		this.retry(request);
+	}
+
+	/**
+	 * @param iface interface out which ARP requests are sent
+	 * @param ip IP address of a next hop
+	 * @return true if the next hop is being resolved on the interface, 
+	 *         otherwise false
+	 */
+	public synchronized boolean isResolving(Iface iface, int ip)
+	{
+		Map<Integer,Request> ifaceRequests = this.requests.get(iface);
+		return (ifaceRequests != null && ifaceRequests.containsKey(ip));
+	}
+
+	/**
+	 * Add a learned mapping to the ARP cache, first sending the packets 
+	 * waiting for the next hop. Until the queue is empty the mapping is not
+	 * in the cache, so packets that arrive meanwhile join the queue behind
+	 * the packets of their flow instead of overtaking them. If the next hop
+	 * is already being sent its queue, the mapping is ignored.
+	 * @param iface interface on which the next hop's MAC address was learned
+	 * @param ip IP address of the next hop
+	 * @param mac MAC address of the next hop
+	 */
+	public void resolved(Iface iface, int ip, MACAddress mac)
+	{
+		Request request;
+		synchronized(this)
+		{
+			request = this.requestsFor(iface).get(ip);
+			if (null == request)
+			{
+				this.router.getArpCache().insert(mac, ip);
+				return;
+			}
+			if (request.draining)
+			{ return; }
+			request.draining = true;
+			if (request.retry != null)
+			{ request.retry.cancel(false); }
+		}
+
+		byte[] srcMac = request.iface.getMacAddress().toBytes();
+		byte[] dstMac = mac.toBytes();
+		while (true)
+		{
+			QueuedPacket[] packets;
+			synchronized(this)
+			{
+				if (request.packets.isEmpty())
+				{
+					this.router.getArpCache().insert(mac, ip);
+					Map<Integer,Request> ifaceRequests = 
+							this.requestsFor(iface);
+					if (ifaceRequests.get(ip) == request)
+					{ ifaceRequests.remove(ip); }
+					return;
+				}
+				packets = request.packets.toArray(
+						new QueuedPacket[request.packets.size()]);
+				request.packets.clear();
+				this.queued -= packets.length;
+			}
+
+			for (QueuedPacket packet : packets)
+			{
+				packet.etherPacket.setSourceMACAddress(srcMac);
+				packet.etherPacket.setDestinationMACAddress(dstMac);
+				this.router.sendPacket(packet.etherPacket, request.iface);
+			}
+		}
+	}
+
+	/**
+	 * Send the next ARP request for a next hop, or give up on the next hop
+	 * if it has been tried enough times.
+	 */
+	private void retry(Request request)
+	{
+		boolean giveUp;
+		synchronized(this)
+		{
+			Map<Integer,Request> ifaceRequests = 
+					this.requestsFor(request.iface);
+			if (ifaceRequests.get(request.ip) != request || request.draining)
+			{ return; }
+			giveUp = (request.tries >= MAX_TRIES);
+			if (giveUp)
+			{
+				this.router.getArpCache().fail(request.ip);
+				ifaceRequests.remove(request.ip);
+				this.queued -= request.packets.size();
+			}
+			else
+			{
+				request.tries++;
+				this.requestsSent++;
+				if (!this.timer.isShutdown())
+				{
+					request.retry = this.timer.schedule(request,
+							RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+
+		if (giveUp)
+		{
+			for (QueuedPacket packet : request.packets)
+			{
+				this.router.sendIcmp(packet.etherPacket, packet.inIface,
+						ICMP.TYPE_DESTINATION_UNREACHABLE,
+						ICMP.CODE_HOST_UNREACHABLE);
+			}
+		}
+		else
+		{ this.sendRequest(request.ip, request.iface); }
+	}
+
+	/**
+	 * Save the ARP cache's learned entries every SAVE_INTERVAL.
+	 * @param filename name of the file to save the entries in
+	 */
+	public void scheduleSave(final String filename)
+	{
+		this.timer.scheduleWithFixedDelay(new Runnable() {
+					public void run()
+					{ ArpSnapshot.write(ArpResolver.this.router.getArpCache(),
+							filename); }
+				}, SAVE_INTERVAL, SAVE_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the outstanding resolutions on an interface; maps a next hop 
+	 *         IP address to its request; the caller must hold this resolver's
+	 *         lock
+	 */
+	private Map<Integer,Request> requestsFor(Iface iface)
+	{
+		Map<Integer,Request> ifaceRequests = this.requests.get(iface);
+		if (null == ifaceRequests)
+		{
+			ifaceRequests = new HashMap<Integer,Request>();
+			this.requests.put(iface, ifaceRequests);
+		}
+		return ifaceRequests;
+	}
+
+	/**
+	 * Expire old ARP cache entries, and send a unicast ARP request to the
+	 * neighbor of each used entry that will expire soon. The reply replaces
+	 * the entry, so it never lapses while packets are sent to it. The 
+	 * adjacencies of expired entries are dropped. Routes are looked up in 
+	 * the route table's engine, so refreshes do not count in the route 
+	 * cache.
+	 */
+	private void age()
+	{
+		for (ArpEntry entry :
+				this.router.getArpCache().age(System.currentTimeMillis()))
+		{
+			RouteEntry route = this.router.getRouteTable().getEngine()
+					.lookup(entry.getIp());
+			if (null == route)
+			{ continue; }
+			this.sendRequest(entry.getIp(), route.getInterface(),
+					entry.getMac().toBytes());
+		}
+		this.router.getAdjacencies().retain(this.router.getArpCache());
+	}
+
+	/**
+	 * Broadcast an ARP request for an IP address.
+	 * @param ip IP address whose MAC address is wanted
+	 * @param iface interface out which to send the request
+	 */
+	private void sendRequest(int ip, Iface iface)
+	{ this.sendRequest(ip, iface, null); }
+
+	/**
+	 * Send an ARP request for an IP address.
+	 * @param ip IP address whose MAC address is wanted
+	 * @param iface interface out which to send the request
+	 * @param mac MAC address to send the request to; null to broadcast it
+	 */
+	private void sendRequest(int ip, Iface iface, byte[] mac)
+	{
+		ARP arpPacket = new ARP();
+		arpPacket.setHardwareType(ARP.HW_TYPE_ETHERNET);
+		arpPacket.setProtocolType(ARP.PROTO_TYPE_IP);
+		arpPacket.setHardwareAddressLength(
+				(byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
+		arpPacket.setProtocolAddressLength((byte)4);
+		arpPacket.setOpCode(ARP.OP_REQUEST);
+		arpPacket.setSenderHardwareAddress(iface.getMacAddress().toBytes());
+		arpPacket.setSenderProtocolAddress(iface.getIpAddress());
+		arpPacket.setTargetHardwareAddress(
+				new byte[Ethernet.DATALAYER_ADDRESS_LENGTH]);
+		arpPacket.setTargetProtocolAddress(ip);
+
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.setEtherType(Ethernet.TYPE_ARP);
+		etherPacket.setSourceMACAddress(iface.getMacAddress().toBytes());
+		if (null == mac)
+		{ etherPacket.setDestinationMACAddress("ff:ff:ff:ff:ff:ff"); }
+		else
+		{ etherPacket.setDestinationMACAddress(mac); }
+		etherPacket.setPayload(arpPacket);
+		this.router.sendPacket(etherPacket, iface);
+	}
+
+	/**
+	 * Stop retrying ARP requests, and drop all queued packets.
+	 */
+	public void shutdown()
+	{
+		this.timer.shutdownNow();
+		synchronized(this)
+		{
+			this.requests.clear();
+			this.queued = 0;
+		}
+	}
+
+	public synchronized String toString()
+	{
+		return String.format("ARP resolver: %d requests sent, %d packets "
+				+ "coalesced, %d packets dropped on full queues",
+				this.requestsSent, this.coalesced, this.overflows);
+	}
+}
@@ -0,0 +1,177 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Reads and writes the learned mappings of an ARP cache, so a restarted
+ * router does not have to resolve every neighbor again before forwarding.
+ * <p>
+ * A snapshot starts with a magic number, a format version, and the number
+ * of mappings. Each mapping is an IP address, a 6-byte MAC address, and the
+ * time (in milliseconds since the epoch) the mapping was created, so it
+ * keeps its age across a restart. A CRC-32 of all preceding bytes ends the
+ * file. All values are big-endian. Permanent mappings are not written, since
+ * they are loaded from their own file.
+ */
+public class ArpSnapshot
+{
+	/** Magic number at the start of every snapshot ("ARP1") */
+	private static final int MAGIC = 0x41525031;
+
+	/** Version of the snapshot format */
+	public static final short VERSION = 1;
+
+	/** Bytes in each mapping */
+	private static final int ENTRY_SIZE = 4 + 6 + 8;
+
+	/**
+	 * Write the learned mappings of an ARP cache. The snapshot is written to
+	 * a temporary file that then replaces the named file, so a reader never
+	 * sees a partial snapshot.
+	 * @param cache ARP cache to write
+	 * @param filename name of the file to write
+	 * @return true if the snapshot was written, otherwise false
+	 */
+	static boolean write(ArpCache cache, String filename)
+	{
+		List<ArpEntry> entries = new ArrayList<ArpEntry>();
+		for (ArpEntry entry : cache.getEntries())
+		{
+			if (!entry.isPermanent())
+			{ entries.add(entry); }
+		}
+
+		// Write in address order; reinserting in the cache's slot order
+		// would pile the entries into long probe runs as the cache grows
+		Collections.sort(entries, new Comparator<ArpEntry>() {
+					public int compare(ArpEntry a, ArpEntry b)
+					{ return Integer.compare(a.getIp(), b.getIp()); }
+				});
+
+		Path path = Paths.get(filename).toAbsolutePath();
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		CRC32 crc = new CRC32();
+		try (DataOutputStream out = new DataOutputStream(
+				new CheckedOutputStream(new BufferedOutputStream(
+						new FileOutputStream(temp.toFile())), crc)))
+		{
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeInt(entries.size());
+			for (ArpEntry entry : entries)
+			{
+				out.writeInt(entry.getIp());
+				out.write(entry.getMac().toBytes());
+				out.writeLong(entry.getTimeAdded());
+			}
+			out.flush();
+			out.writeInt((int)crc.getValue());
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			try { Files.deleteIfExists(temp); } catch (IOException f) {};
+			return false;
+		}
+
+		try
+		{ Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE); }
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Add the mappings in a snapshot to an ARP cache, with the ages they had
+	 * when they were written. Mappings that have expired by now are skipped,
+	 * and permanent mappings in the cache are kept. Problems are reported on
+	 * standard error.
+	 * @param cache ARP cache to add mappings to
+	 * @param filename name of the file to read
+	 * @return number of mappings added; -1 if the snapshot could not be read
+	 */
+	static int read(ArpCache cache, String filename)
+	{
+		ByteBuffer buf;
+		try
+		{ buf = ByteBuffer.wrap(Files.readAllBytes(Paths.get(filename))); }
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return -1;
+		}
+
+		try
+		{
+			if (buf.capacity() < 14 || buf.getInt() != MAGIC)
+			{ throw new IOException("not an ARP snapshot"); }
+			short version = buf.getShort();
+			if (version != VERSION)
+			{ throw new IOException("unsupported version " + version); }
+
+			CRC32 crc = new CRC32();
+			crc.update(buf.array(), 0, buf.capacity() - 4);
+			if ((int)crc.getValue() != buf.getInt(buf.capacity() - 4))
+			{ throw new IOException("checksum mismatch"); }
+			buf.limit(buf.capacity() - 4);
+
+			int count = buf.getInt();
+			if (count < 0 || (long)count * ENTRY_SIZE != buf.remaining())
+			{ throw new IOException("invalid entry count " + count); }
+
+			long now = System.currentTimeMillis();
+			long timeout = cache.getTimeout();
+			byte[] mac = new byte[6];
+			int added = 0;
+			for (int i = 0; i < count; i++)
+			{
+				int ip = buf.getInt();
+				buf.get(mac);
+				long timeAdded = buf.getLong();
+
+				// Do not trust mappings that would have aged out, or that
+				// claim to come from the future
+				if (timeAdded > now
+						|| (timeout > 0 && now - timeAdded >= timeout))
+				{ continue; }
+				long macValue = 0;
+				for (int b = 0; b < mac.length; b++)
+				{ macValue = (macValue << 8) | (mac[b] & 0xff); }
+				cache.insert(ip, macValue, timeAdded, false);
+				added++;
+			}
+			return added;
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error loading ARP snapshot " + filename + ", "
+					+ e.getMessage());
+			return -1;
+		}
+		catch (BufferUnderflowException e)
+		{
+			System.err.println("Error loading ARP snapshot " + filename
+					+ ", file truncated");
+			return -1;
+		}
+	}
+}
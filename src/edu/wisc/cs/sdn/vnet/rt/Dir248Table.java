@@ -0,0 +1,591 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A DIR-24-8 multibit lookup table. A first-level table with one slot per
+ * /24 holds the route for prefixes up to 24 bits long; slots covered by a
+ * longer prefix instead point to a 256-slot second-level block. A lookup
+ * takes one slot read for most addresses and two for addresses under a
+ * prefix longer than /24. A fully populated first-level table occupies 64MB.
+ * <p>
+ * Slots hold route identifiers rather than entries: 0 means no route, a
+ * positive value indexes the route array, and a value with the high bit set
+ * names a second-level block. Inserts and removes only rewrite the slots
+ * covered by the affected prefix. Routes are kept in a compact RouteStore,
+ * and lookups return views of them.
+ * <p>
+ * The first-level table, the second-level blocks, and the route store are
+ * split into chunks. A copy shares every chunk with the original and clones
+ * a chunk the first time it writes to it, so modifying a copy never
+ * disturbs lookups on the original.
+ * <p>
+ * A table read from a snapshot only has its lookup structures. The index of
+ * stored prefixes used by changes is rebuilt the first time it is needed.
+ */
+public class Dir248Table implements LookupEngine
+{
+	/** Flag marking a first-level slot that points to a second-level block */
+	private static final int BLOCK_FLAG = 0x80000000;
+
+	/** Number of slots in a second-level block */
+	private static final int BLOCK_SIZE = 256;
+
+	/** Number of slots in a first-level or second-level chunk */
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	/** First-level chunks, indexed by the top 8 bits of an address */
+	private int[][] tbl24;
+
+	/** Whether this table may write to each first-level chunk in place */
+	private boolean[] owned24;
+
+	/** Second-level chunks, each holding 256 second-level blocks */
+	private int[][] tbl8;
+
+	/** Whether this table may write to each second-level chunk in place */
+	private boolean[] owned8;
+
+	/** Routes, indexed by route identifier; id 0 never has a route */
+	private RouteStore routes;
+
+	/** First-level chunk with no routes, shared by all empty chunks */
+	private int[] emptyChunk;
+
+	/** Indices of second-level blocks that are free for reuse */
+	private int[] freeBlocks;
+
+	/** Number of free second-level blocks */
+	private int freeBlockCount;
+
+	/** Number of second-level blocks ever allocated */
+	private int blockCount;
+
+	/** Route identifiers of stored prefixes; maps a prefix key to an id;
+	 *  null until indexed */
+	private PrefixIdMap ids;
+
+	/**
+	 * Initialize an empty table.
+	 */
+	public Dir248Table()
+	{
+		this.emptyChunk = new int[CHUNK_SIZE];
+		this.reset();
+	}
+
+	private void reset()
+	{
+		this.tbl24 = new int[256][];
+		Arrays.fill(this.tbl24, this.emptyChunk);
+		this.owned24 = new boolean[256];
+		this.tbl8 = new int[1][];
+		this.owned8 = new boolean[1];
+		this.routes = new RouteStore();
+		this.freeBlocks = new int[16];
+		this.freeBlockCount = 0;
+		this.blockCount = 0;
+		this.ids = new PrefixIdMap();
+	}
+
+	public Dir248Table copy()
+	{
+		Dir248Table copy = new Dir248Table(this);
+		copy.tbl24 = this.tbl24.clone();
+		copy.owned24 = new boolean[this.owned24.length];
+		copy.tbl8 = this.tbl8.clone();
+		copy.owned8 = new boolean[this.owned8.length];
+		copy.routes = this.routes.copy();
+		copy.freeBlocks = this.freeBlocks.clone();
+		copy.freeBlockCount = this.freeBlockCount;
+		copy.blockCount = this.blockCount;
+		copy.ids = (null == this.ids) ? null : this.ids.copy();
+		return copy;
+	}
+
+	private Dir248Table(Dir248Table original)
+	{ this.emptyChunk = original.emptyChunk; }
+
+	public int size()
+	{ return this.routes.size(); }
+
+	public RouteEntry lookup(int ip)
+	{
+		int slot = this.tbl24[ip >>> 24][(ip >>> 8) & 0xffff];
+		if ((slot & BLOCK_FLAG) != 0)
+		{
+			int block = slot & ~BLOCK_FLAG;
+			slot = this.tbl8[block >>> 8][((block & 0xff) << 8) | (ip & 0xff)];
+		}
+		return this.routes.get(slot);
+	}
+
+	public void lookup(int[] ips, int count, RouteEntry[] out)
+	{
+		for (int i = 0; i < count; i++)
+		{ out[i] = this.lookup(ips[i]); }
+	}
+
+	public RouteEntry get(int dstIp, int maskIp)
+	{
+		this.index();
+		int length = PrefixTrie.maskLength(maskIp);
+		return this.routes.get(this.ids.get(
+				key(dstIp & PrefixTrie.mask(length), length)));
+	}
+
+	public List<RouteEntry> getEntries()
+	{
+		this.index();
+		long[] keys = this.ids.keys();
+		List<RouteEntry> entries = new ArrayList<RouteEntry>(keys.length);
+		for (long key : keys)
+		{ entries.add(this.routes.get(this.ids.get(key))); }
+		return entries;
+	}
+
+	public void insert(int dstIp, int maskIp, RouteEntry entry)
+	{
+		this.index();
+		int length = PrefixTrie.maskLength(maskIp);
+		int prefix = dstIp & PrefixTrie.mask(length);
+
+		// Replacing the entry for a stored prefix leaves the slots unchanged
+		int existing = this.ids.get(key(prefix, length));
+		if (existing != 0)
+		{
+			this.routes.set(existing, entry);
+			return;
+		}
+
+		int id = this.routes.add(entry);
+		this.ids.put(key(prefix, length), id);
+
+		if (length <= 24)
+		{
+			int start = prefix >>> 8;
+			int end = start + (1 << (24 - length));
+			for (int i = start; i < end; i++)
+			{
+				int slot = this.get24(i);
+				if ((slot & BLOCK_FLAG) != 0)
+				{
+					int base = (slot & ~BLOCK_FLAG) << 8;
+					this.fill(base, base + BLOCK_SIZE, length, id);
+				}
+				else if (this.lengthOf(slot) < length)
+				{ this.set24(i, id); }
+			}
+		}
+		else
+		{
+			int index = prefix >>> 8;
+			int slot = this.get24(index);
+			if (0 == (slot & BLOCK_FLAG))
+			{
+				// Expand the first-level slot into a second-level block
+				int block = this.allocateBlock();
+				int base = (block & 0xff) << 8;
+				Arrays.fill(this.writable8(block >>> 8), base,
+						base + BLOCK_SIZE, slot);
+				slot = BLOCK_FLAG | block;
+				this.set24(index, slot);
+			}
+			int start = ((slot & ~BLOCK_FLAG) << 8) | (prefix & 0xff);
+			this.fill(start, start + (1 << (32 - length)), length, id);
+		}
+	}
+
+	/**
+	 * Add or replace the entries for a batch of prefixes. When the table is
+	 * empty, entries are added in order of increasing prefix length, so each
+	 * one can overwrite its slots without checking which prefix owns them.
+	 * @param entries route entries to store
+	 */
+	public void insertAll(List<RouteEntry> entries)
+	{
+		this.index();
+		if (this.size() > 0)
+		{
+			for (RouteEntry entry : entries)
+			{
+				this.insert(entry.getDestinationAddress(),
+						entry.getMaskAddress(), entry);
+			}
+			return;
+		}
+
+		// Sort the entries by prefix length, keeping file order within a length
+		int[] starts = new int[34];
+		for (RouteEntry entry : entries)
+		{ starts[PrefixTrie.maskLength(entry.getMaskAddress()) + 1]++; }
+		for (int length = 1; length < starts.length; length++)
+		{ starts[length] += starts[length - 1]; }
+		RouteEntry[] sorted = new RouteEntry[entries.size()];
+		for (RouteEntry entry : entries)
+		{ sorted[starts[PrefixTrie.maskLength(entry.getMaskAddress())]++] = entry; }
+
+		for (RouteEntry entry : sorted)
+		{
+			int length = PrefixTrie.maskLength(entry.getMaskAddress());
+			int prefix = entry.getDestinationAddress() & PrefixTrie.mask(length);
+			int existing = this.ids.get(key(prefix, length));
+			if (existing != 0)
+			{
+				this.routes.set(existing, entry);
+				continue;
+			}
+
+			int id = this.routes.add(entry);
+			this.ids.put(key(prefix, length), id);
+
+			if (length <= 24)
+			{
+				// No second-level blocks exist until all short prefixes are in
+				int start = prefix >>> 8;
+				int end = start + (1 << (24 - length));
+				while (start < end)
+				{
+					int chunk = start >>> 16;
+					int stop = Math.min(end, (chunk + 1) << 16);
+					Arrays.fill(this.writable24(chunk), start & (CHUNK_SIZE - 1),
+							((stop - 1) & (CHUNK_SIZE - 1)) + 1, id);
+					start = stop;
+				}
+			}
+			else
+			{
+				int index = prefix >>> 8;
+				int slot = this.get24(index);
+				if (0 == (slot & BLOCK_FLAG))
+				{
+					int block = this.allocateBlock();
+					int base = (block & 0xff) << 8;
+					Arrays.fill(this.writable8(block >>> 8), base,
+							base + BLOCK_SIZE, slot);
+					slot = BLOCK_FLAG | block;
+					this.set24(index, slot);
+				}
+				int start = ((slot & ~BLOCK_FLAG) << 8) | (prefix & 0xff);
+				Arrays.fill(this.writable8(start >>> 16), start & (CHUNK_SIZE - 1),
+						(start & (CHUNK_SIZE - 1)) + (1 << (32 - length)), id);
+			}
+		}
+	}
+
+	public boolean remove(int dstIp, int maskIp)
+	{
+		this.index();
+		int length = PrefixTrie.maskLength(maskIp);
+		int prefix = dstIp & PrefixTrie.mask(length);
+		int id = this.ids.remove(key(prefix, length));
+		if (0 == id)
+		{ return false; }
+
+		// Slots owned by the prefix fall back to the next longest cover
+		int cover = 0;
+		for (int coverLength = length - 1; coverLength >= 0 && 0 == cover;
+				coverLength--)
+		{
+			cover = this.ids.get(key(prefix & PrefixTrie.mask(coverLength),
+					coverLength));
+		}
+
+		if (length <= 24)
+		{
+			int start = prefix >>> 8;
+			int end = start + (1 << (24 - length));
+			for (int i = start; i < end; i++)
+			{
+				int slot = this.get24(i);
+				if ((slot & BLOCK_FLAG) != 0)
+				{
+					int base = (slot & ~BLOCK_FLAG) << 8;
+					this.replace(base, base + BLOCK_SIZE, id, cover);
+				}
+				else if (slot == id)
+				{ this.set24(i, cover); }
+			}
+		}
+		else
+		{
+			int index = prefix >>> 8;
+			int block = this.get24(index) & ~BLOCK_FLAG;
+			int base = block << 8;
+			int start = base | (prefix & 0xff);
+			this.replace(start, start + (1 << (32 - length)), id, cover);
+
+			// Collapse the block once no prefix longer than /24 remains in it
+			boolean collapse = true;
+			for (int i = base; i < base + BLOCK_SIZE && collapse; i++)
+			{ collapse = (this.lengthOf(this.get8(i)) <= 24); }
+			if (collapse)
+			{
+				this.set24(index, this.get8(base));
+				this.freeBlock(block);
+			}
+		}
+
+		this.routes.remove(id);
+		return true;
+	}
+
+	public void clear()
+	{ this.reset(); }
+
+	/**
+	 * Add the gateway of each path of every stored route to a map, without
+	 * building the index of stored prefixes.
+	 * @param gateways maps a gateway IP address to the interface out which
+	 *        it is reached
+	 */
+	void putGateways(Map<Integer,Iface> gateways)
+	{ this.routes.putGateways(gateways); }
+
+	/**
+	 * Build the index of stored prefixes from the route store, if the table
+	 * does not have one yet.
+	 */
+	private void index()
+	{
+		if (this.ids != null)
+		{ return; }
+		this.ids = new PrefixIdMap();
+		for (int id = 1; id < this.routes.getIdCount(); id++)
+		{
+			if (!this.routes.contains(id))
+			{ continue; }
+			int length = PrefixTrie.maskLength(this.routes.getMask(id));
+			this.ids.put(key(this.routes.getDestination(id) 
+					& PrefixTrie.mask(length), length), id);
+		}
+	}
+
+	/**
+	 * Write the table to a snapshot: the routes by identifier, the
+	 * second-level block count and free blocks, the first-level chunks
+	 * (each preceded by a byte that is 0 if the chunk is empty), and the
+	 * second-level chunks in use.
+	 * @param ifaceIndices indices of the interfaces routes may use
+	 */
+	void write(DataOutputStream out, Map<Iface,Integer> ifaceIndices)
+			throws IOException
+	{
+		out.writeInt(this.routes.getIdCount());
+		for (int id = 1; id < this.routes.getIdCount(); id++)
+		{ FibSnapshot.writeEntry(out, this.routes.get(id), ifaceIndices); }
+
+		out.writeInt(this.blockCount);
+		out.writeInt(this.freeBlockCount);
+		for (int i = 0; i < this.freeBlockCount; i++)
+		{ out.writeInt(this.freeBlocks[i]); }
+
+		for (int chunk = 0; chunk < this.tbl24.length; chunk++)
+		{
+			if (this.tbl24[chunk] == this.emptyChunk)
+			{ out.writeByte(0); }
+			else
+			{
+				out.writeByte(1);
+				FibSnapshot.writeInts(out, this.tbl24[chunk]);
+			}
+		}
+		for (int chunk = 0; chunk < (this.blockCount + 255) >>> 8; chunk++)
+		{ FibSnapshot.writeInts(out, this.tbl8[chunk]); }
+	}
+
+	/**
+	 * Read a table written to a snapshot by write.
+	 * @param ifaces interfaces routes may use, by index
+	 * @return the table, without an index of stored prefixes
+	 */
+	static Dir248Table read(ByteBuffer buf, Iface[] ifaces) throws IOException
+	{
+		Dir248Table table = new Dir248Table();
+		table.ids = null;
+
+		int idCount = buf.getInt();
+		if (idCount < 1)
+		{ throw new IOException("invalid route count " + idCount); }
+		List<Integer> missing = new ArrayList<Integer>();
+		for (int id = 1; id < idCount; id++)
+		{
+			RouteEntry entry = FibSnapshot.readEntry(buf, ifaces);
+			table.routes.allocate();
+			if (null == entry)
+			{ missing.add(id); }
+			else
+			{ table.routes.set(id, entry); }
+		}
+		for (int id : missing)
+		{ table.routes.remove(id); }
+
+		table.blockCount = buf.getInt();
+		table.freeBlockCount = buf.getInt();
+		if (table.blockCount < 0 || table.freeBlockCount < 0 
+				|| table.freeBlockCount > table.blockCount)
+		{ throw new IOException("invalid block count " + table.blockCount); }
+		table.freeBlocks = new int[Math.max(16, table.freeBlockCount)];
+		for (int i = 0; i < table.freeBlockCount; i++)
+		{ table.freeBlocks[i] = buf.getInt(); }
+
+		for (int chunk = 0; chunk < table.tbl24.length; chunk++)
+		{
+			if (0 == buf.get())
+			{ continue; }
+			table.tbl24[chunk] = new int[CHUNK_SIZE];
+			table.owned24[chunk] = true;
+			FibSnapshot.readInts(buf, table.tbl24[chunk]);
+		}
+		int blockChunks = (table.blockCount + 255) >>> 8;
+		table.tbl8 = new int[Math.max(1, blockChunks)][];
+		table.owned8 = new boolean[table.tbl8.length];
+		for (int chunk = 0; chunk < blockChunks; chunk++)
+		{
+			table.tbl8[chunk] = new int[CHUNK_SIZE];
+			table.owned8[chunk] = true;
+			FibSnapshot.readInts(buf, table.tbl8[chunk]);
+		}
+		table.check();
+		return table;
+	}
+
+	/**
+	 * Check that every slot names a route or block that exists, so a damaged
+	 * snapshot cannot make lookups fail.
+	 */
+	private void check() throws IOException
+	{
+		for (int[] chunk : this.tbl24)
+		{
+			if (chunk == this.emptyChunk)
+			{ continue; }
+			for (int slot : chunk)
+			{
+				if ((slot & BLOCK_FLAG) != 0
+						? (slot & ~BLOCK_FLAG) >= this.blockCount
+						: (slot != 0 && !this.routes.contains(slot)))
+				{ throw new IOException("invalid slot " + slot); }
+			}
+		}
+		for (int[] chunk : this.tbl8)
+		{
+			if (null == chunk)
+			{ continue; }
+			for (int slot : chunk)
+			{
+				if (slot < 0 || slot >= this.routes.getIdCount())
+				{ throw new IOException("invalid slot " + slot); }
+			}
+		}
+	}
+
+	/**
+	 * Point second-level slots at a route, unless a longer prefix owns them.
+	 */
+	private void fill(int start, int end, int length, int id)
+	{
+		for (int i = start; i < end; i++)
+		{
+			if (this.lengthOf(this.get8(i)) < length)
+			{ this.set8(i, id); }
+		}
+	}
+
+	/**
+	 * Point second-level slots owned by one route at another route.
+	 */
+	private void replace(int start, int end, int id, int cover)
+	{
+		for (int i = start; i < end; i++)
+		{
+			if (this.get8(i) == id)
+			{ this.set8(i, cover); }
+		}
+	}
+
+	/**
+	 * @return the prefix length of the route with an identifier; -1 for none
+	 */
+	private int lengthOf(int id)
+	{
+		if (0 == id)
+		{ return -1; }
+		return PrefixTrie.maskLength(this.routes.getMask(id));
+	}
+
+	private int get24(int index)
+	{ return this.tbl24[index >>> 16][index & (CHUNK_SIZE - 1)]; }
+
+	private void set24(int index, int value)
+	{ this.writable24(index >>> 16)[index & (CHUNK_SIZE - 1)] = value; }
+
+	private int[] writable24(int chunk)
+	{
+		if (!this.owned24[chunk])
+		{
+			this.tbl24[chunk] = this.tbl24[chunk].clone();
+			this.owned24[chunk] = true;
+		}
+		return this.tbl24[chunk];
+	}
+
+	private int get8(int index)
+	{ return this.tbl8[index >>> 16][index & (CHUNK_SIZE - 1)]; }
+
+	private void set8(int index, int value)
+	{ this.writable8(index >>> 16)[index & (CHUNK_SIZE - 1)] = value; }
+
+	private int[] writable8(int chunk)
+	{
+		if (!this.owned8[chunk])
+		{
+			this.tbl8[chunk] = this.tbl8[chunk].clone();
+			this.owned8[chunk] = true;
+		}
+		return this.tbl8[chunk];
+	}
+
+	private int allocateBlock()
+	{
+		if (this.freeBlockCount > 0)
+		{ return this.freeBlocks[--this.freeBlockCount]; }
+		int block = this.blockCount++;
+		int chunk = block >>> 8;
+		if (chunk == this.tbl8.length)
+		{
+			this.tbl8 = Arrays.copyOf(this.tbl8, chunk * 2);
+			this.owned8 = Arrays.copyOf(this.owned8, chunk * 2);
+		}
+		if (null == this.tbl8[chunk])
+		{
+			this.tbl8[chunk] = new int[CHUNK_SIZE];
+			this.owned8[chunk] = true;
+		}
+		return block;
+	}
+
+	private void freeBlock(int block)
+	{
+		if (this.freeBlockCount == this.freeBlocks.length)
+		{
+			this.freeBlocks = Arrays.copyOf(this.freeBlocks,
+					this.freeBlockCount * 2);
+		}
+		this.freeBlocks[this.freeBlockCount++] = block;
+	}
+
+	/**
+	 * @return a key that uniquely identifies a prefix
+	 */
+	private static long key(int prefix, int length)
+	{ return ((prefix & 0xffffffffL) << 6) | length; }
+}
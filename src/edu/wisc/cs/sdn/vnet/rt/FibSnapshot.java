@@ -0,0 +1,334 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import net.floodlightcontroller.packet.MACAddress;
+
+/**
+ * Reads and writes binary snapshots of a compiled lookup engine, so a router
+ * can restart with a large route table without parsing and rebuilding it.
+ * <p>
+ * A snapshot starts with a magic number, a format version, and the type of
+ * engine, followed by the interfaces the routes use: name, IP address,
+ * subnet mask, and MAC address. Routes refer to interfaces by their index
+ * in this list. The engine's own structure follows, and a CRC-32 of all
+ * preceding bytes ends the file. All values are big-endian. Snapshots are
+ * read through a memory map, and the large tables of a DIR-24-8 engine are
+ * copied out of the map in bulk.
+ */
+public class FibSnapshot
+{
+	/** Magic number at the start of every snapshot ("FIB1") */
+	private static final int MAGIC = 0x46494231;
+
+	/** Version of the snapshot format */
+	public static final short VERSION = 2;
+
+	/** Engine type of a path-compressed trie */
+	private static final byte TYPE_TRIE = 0;
+
+	/** Engine type of a DIR-24-8 table */
+	private static final byte TYPE_DIR248 = 1;
+
+	/** Number of ints converted at a time when writing int arrays */
+	private static final int INT_BUFFER_SIZE = 1 << 14;
+
+	/**
+	 * Write a snapshot of a lookup engine. The snapshot is written to a
+	 * temporary file that then replaces the named file, so a reader never
+	 * sees a partial snapshot.
+	 * @param engine lookup engine to write; must not be modified while it is
+	 *        written
+	 * @param interfaces interfaces the routes use; maps interface names to
+	 *        interfaces
+	 * @param filename name of the file to write
+	 * @return true if the snapshot was written, otherwise false
+	 */
+	static boolean write(LookupEngine engine, Map<String,Iface> interfaces,
+			String filename)
+	{
+		byte type;
+		if (engine instanceof PrefixTrie)
+		{ type = TYPE_TRIE; }
+		else if (engine instanceof Dir248Table)
+		{ type = TYPE_DIR248; }
+		else
+		{
+			System.err.println("Cannot write route snapshot for engine "
+					+ engine.getClass().getSimpleName());
+			return false;
+		}
+
+		// Number interfaces in name order
+		List<String> names = new ArrayList<String>(interfaces.keySet());
+		Collections.sort(names);
+		if (names.size() >= 0xff)
+		{
+			System.err.println("Cannot write route snapshot, too many interfaces");
+			return false;
+		}
+		Map<Iface,Integer> indices = new HashMap<Iface,Integer>();
+		for (String name : names)
+		{ indices.put(interfaces.get(name), indices.size()); }
+
+		Path path = Paths.get(filename).toAbsolutePath();
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		CRC32 crc = new CRC32();
+		try (DataOutputStream out = new DataOutputStream(
+				new CheckedOutputStream(new BufferedOutputStream(
+						new FileOutputStream(temp.toFile()), 1 << 16), crc)))
+		{
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeByte(type);
+			out.writeByte(names.size());
+			for (String name : names)
+			{
+				Iface iface = interfaces.get(name);
+				byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+				out.writeShort(nameBytes.length);
+				out.write(nameBytes);
+				out.writeInt(iface.getIpAddress());
+				out.writeInt(iface.getSubnetMask());
+				out.write(macBytes(iface.getMacAddress()));
+			}
+
+			if (TYPE_TRIE == type)
+			{ ((PrefixTrie)engine).write(out, indices); }
+			else
+			{ ((Dir248Table)engine).write(out, indices); }
+
+			out.flush();
+			out.writeInt((int)crc.getValue());
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			try { Files.deleteIfExists(temp); } catch (IOException f) {};
+			return false;
+		}
+
+		try
+		{ Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE); }
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read a snapshot of a lookup engine. The snapshot is only accepted if
+	 * it lists exactly the interfaces given, with the same addresses.
+	 * Problems are reported on standard error.
+	 * @param filename name of the file to read
+	 * @param interfaces interfaces of the router, as received from the
+	 *        server; maps interface names to interfaces
+	 * @return the lookup engine in the snapshot, using the given interfaces;
+	 *         null if the snapshot could not be read or does not match the
+	 *         interfaces
+	 */
+	static LookupEngine read(String filename, Map<String,Iface> interfaces)
+	{
+		MappedByteBuffer buf;
+		try (FileChannel channel = FileChannel.open(Paths.get(filename),
+				StandardOpenOption.READ))
+		{
+			if (channel.size() > Integer.MAX_VALUE)
+			{
+				System.err.println("Error loading route snapshot, file too large: "
+						+ filename);
+				return null;
+			}
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return null;
+		}
+
+		try
+		{
+			if (buf.capacity() < 12 || buf.getInt() != MAGIC)
+			{ throw new IOException("not a route snapshot"); }
+			short version = buf.getShort();
+			if (version != VERSION)
+			{ throw new IOException("unsupported version " + version); }
+
+			// Check the body before trusting any of its contents
+			ByteBuffer body = buf.duplicate();
+			body.position(0).limit(buf.capacity() - 4);
+			CRC32 crc = new CRC32();
+			crc.update(body);
+			if ((int)crc.getValue() != buf.getInt(buf.capacity() - 4))
+			{ throw new IOException("checksum mismatch"); }
+			buf.limit(buf.capacity() - 4);
+
+			byte type = buf.get();
+			int count = buf.get() & 0xff;
+			if (count != interfaces.size())
+			{
+				throw new IOException(String.format(
+						"built for %d interfaces, router has %d", count,
+						interfaces.size()));
+			}
+			Iface[] ifaces = new Iface[count];
+			for (int i = 0; i < count; i++)
+			{
+				byte[] nameBytes = new byte[buf.getShort() & 0xffff];
+				buf.get(nameBytes);
+				String name = new String(nameBytes, StandardCharsets.UTF_8);
+				int ip = buf.getInt();
+				int mask = buf.getInt();
+				byte[] mac = new byte[MACAddress.MAC_ADDRESS_LENGTH];
+				buf.get(mac);
+
+				Iface iface = interfaces.get(name);
+				if (null == iface)
+				{ throw new IOException("router has no interface " + name); }
+				if (iface.getIpAddress() != ip || iface.getSubnetMask() != mask
+						|| !Arrays.equals(macBytes(iface.getMacAddress()), mac))
+				{ throw new IOException("addresses changed for interface " + name); }
+				ifaces[i] = iface;
+			}
+
+			LookupEngine engine;
+			if (TYPE_TRIE == type)
+			{ engine = PrefixTrie.read(buf, ifaces); }
+			else if (TYPE_DIR248 == type)
+			{ engine = Dir248Table.read(buf, ifaces); }
+			else
+			{ throw new IOException("unknown engine type " + type); }
+			if (buf.hasRemaining())
+			{ throw new IOException("unexpected data after engine"); }
+			return engine;
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error loading route snapshot " + filename + ", "
+					+ e.getMessage());
+			return null;
+		}
+		catch (BufferUnderflowException e)
+		{
+			System.err.println("Error loading route snapshot " + filename
+					+ ", file truncated");
+			return null;
+		}
+	}
+
+	/**
+	 * Write a route entry, or a marker for a missing entry: the number of 
+	 * paths (0 if the entry is missing), the destination and subnet mask, 
+	 * then the interface index and gateway of each path.
+	 * @param entry route entry to write; null if missing
+	 * @param indices indices of the interfaces routes may use
+	 */
+	static void writeEntry(DataOutput out, RouteEntry entry,
+			Map<Iface,Integer> indices) throws IOException
+	{
+		if (null == entry)
+		{
+			out.writeByte(0);
+			return;
+		}
+		out.writeByte(entry.getPathCount());
+		out.writeInt(entry.getDestinationAddress());
+		out.writeInt(entry.getMaskAddress());
+		for (int path = 0; path < entry.getPathCount(); path++)
+		{
+			out.writeByte(indices.get(entry.getInterface(path)));
+			out.writeInt(entry.getGatewayAddress(path));
+		}
+	}
+
+	/**
+	 * Read a route entry written by writeEntry.
+	 * @param ifaces interfaces routes may use, by index
+	 * @return the route entry; null if the entry is missing
+	 */
+	static RouteEntry readEntry(ByteBuffer buf, Iface[] ifaces)
+			throws IOException
+	{
+		int paths = buf.get() & 0xff;
+		if (0 == paths)
+		{ return null; }
+		if (paths > RouteEntry.MAX_PATHS)
+		{ throw new IOException("invalid path count " + paths); }
+		int dstIp = buf.getInt();
+		int maskIp = buf.getInt();
+		RouteEntry entry = null;
+		for (int path = 0; path < paths; path++)
+		{
+			int index = buf.get() & 0xff;
+			if (index >= ifaces.length)
+			{ throw new IOException("invalid interface index " + index); }
+			int gwIp = buf.getInt();
+			entry = (null == entry)
+					? new RouteEntry(dstIp, gwIp, maskIp, ifaces[index])
+					: entry.addPath(gwIp, ifaces[index]);
+		}
+		return entry;
+	}
+
+	/**
+	 * Write an array of ints.
+	 */
+	static void writeInts(DataOutputStream out, int[] values)
+			throws IOException
+	{
+		byte[] bytes = new byte[4 * Math.min(values.length, INT_BUFFER_SIZE)];
+		IntBuffer ints = ByteBuffer.wrap(bytes).asIntBuffer();
+		for (int i = 0; i < values.length; i += INT_BUFFER_SIZE)
+		{
+			int count = Math.min(INT_BUFFER_SIZE, values.length - i);
+			ints.clear();
+			ints.put(values, i, count);
+			out.write(bytes, 0, 4 * count);
+		}
+	}
+
+	/**
+	 * Read an array of ints written by writeInts.
+	 * @param values array to fill
+	 */
+	static void readInts(ByteBuffer buf, int[] values)
+	{
+		buf.asIntBuffer().get(values);
+		buf.position(buf.position() + 4 * values.length);
+	}
+
+	private static byte[] macBytes(MACAddress mac)
+	{
+		if (null == mac)
+		{ return new byte[MACAddress.MAC_ADDRESS_LENGTH]; }
+		return mac.toBytes();
+	}
+}
@@ -0,0 +1,87 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * A fixed number of token buckets shared by keys, such as MAC or IP
+ * addresses, that hash to the same bucket. Buckets are kept in primitive
+ * arrays, so memory does not grow with the number of keys; keys that share a
+ * bucket share its rate, which with enough buckets is rare.
+ * <p>
+ * Buckets are not thread safe; callers must synchronize.
+ */
+class HashedTokenBuckets
+{
+	/** Tokens added to each bucket per second */
+	private final int rate;
+
+	/** Most tokens each bucket holds */
+	private final int burst;
+
+	/** Bits of a key's hash that select its bucket */
+	private final int bits;
+
+	/** Tokens in each bucket, in thousandths of a token */
+	private final int[] tokens;
+
+	/** Time (from System.nanoTime) up to which tokens have been added to
+	 *  each bucket; time not yet worth a thousandth of a token is kept for
+	 *  the next refill; 0 if the bucket has never been used */
+	private final long[] fills;
+
+	/**
+	 * Create full buckets.
+	 * @param rate tokens added to each bucket per second
+	 * @param burst most tokens each bucket holds
+	 * @param bits log2 of the number of buckets
+	 */
+	HashedTokenBuckets(int rate, int burst, int bits)
+	{
+		this.rate = rate;
+		this.burst = burst;
+		this.bits = bits;
+		this.tokens = new int[1 << bits];
+		this.fills = new long[1 << bits];
+	}
+
+	/**
+	 * Take a token from a key's bucket, if there is one.
+	 * @param key key whose bucket to take from
+	 * @param now current time, from System.nanoTime
+	 * @return true if a token was taken, false if the bucket is empty
+	 */
+	boolean tryTake(long key, long now)
+	{
+		// Refill the bucket, in thousandths of a token
+		int slot = (int)((key * 0x9e3779b97f4a7c15L) >>> (64 - this.bits));
+		long last = this.fills[slot];
+		long tokens;
+		if (0 == last)
+		{
+			tokens = this.burst * 1000L;
+			last = now;
+		}
+		else
+		{
+			long credited = Math.max(0, now - last) * this.rate / 1000000;
+			tokens = this.tokens[slot] + credited;
+			if (tokens >= this.burst * 1000L)
+			{
+				tokens = this.burst * 1000L;
+				last = now;
+			}
+			else
+			{
+				// Move the fill time only by the time credited, so gaps
+				// shorter than a thousandth of a token still add up
+				last += credited * 1000000 / this.rate;
+			}
+		}
+		this.fills[slot] = (0 == last) ? 1 : last;
+		if (tokens < 1000)
+		{
+			this.tokens[slot] = (int)tokens;
+			return false;
+		}
+		this.tokens[slot] = (int)(tokens - 1000);
+		return true;
+	}
+}
@@ -0,0 +1,504 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import net.floodlightcontroller.packet.Checksum;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.ICMP;
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Sends the router's ICMP messages: errors about packets it cannot forward
+ * or deliver, and replies to echo requests for its addresses. Messages are
+ * built and sent by a thread of their own, so a routing loop or a flood of
+ * bad packets cannot take the forwarding thread's time; the forwarding
+ * thread only checks the rate limits and copies the bytes a message quotes
+ * from the received frame into a queue. Plain echo requests are the 
+ * exception: they are turned into their replies in place and sent at once,
+ * which costs less than copying them.
+ * <p>
+ * Following RFC 1812, errors are limited per ICMP type and per destination,
+ * and none are sent about ICMP errors, fragments other than the first, or
+ * packets sent to or from broadcast and multicast addresses. Echo replies
+ * are limited per type only, so one busy monitoring host is still answered.
+ * Messages are dropped when the queue is full.
+ */
+public class IcmpGenerator
+{
+	/** Errors sent per second of each ICMP type */
+	public static final int ERROR_RATE = 1000;
+
+	/** Errors of one type sent at once before the rate limit applies */
+	public static final int ERROR_BURST = 200;
+
+	/** Errors sent per second to one destination */
+	public static final int DESTINATION_RATE = 10;
+
+	/** Errors sent at once to one destination before it is rate limited */
+	public static final int DESTINATION_BURST = 20;
+
+	/** Echo replies sent per second */
+	public static final int ECHO_RATE = 10000;
+
+	/** Echo replies sent at once before the rate limit applies */
+	public static final int ECHO_BURST = 1000;
+
+	/** Most messages waiting to be sent */
+	public static final int MAX_QUEUED = 256;
+
+	/** Bytes of the packet in error an error quotes, beyond its IP header */
+	public static final int QUOTED_DATA = 8;
+
+	/** TTL of the messages sent */
+	private static final int REPLY_TTL = 64;
+
+	/** Bytes in an Ethernet header */
+	private static final int ETHERNET_HEADER_LENGTH = 14;
+
+	/** Longest IPv4 header, with options */
+	private static final int MAX_IP_HEADER_LENGTH = 60;
+
+	/** log2 of the number of destination buckets */
+	private static final int DESTINATION_BUCKET_BITS = 12;
+
+	/** A message waiting to be built and sent; messages are reused */
+	private static class Message
+	{
+		/** ICMP type */
+		byte type;
+
+		/** ICMP code */
+		byte code;
+
+		/** Interface on which the packet in error or echo request arrived */
+		Iface inIface;
+
+		/** MAC address the packet came from, as a 48-bit long */
+		long sourceMac;
+
+		/** Source IP address of the packet */
+		int sourceIp;
+
+		/** Destination IP address of the packet */
+		int destinationIp;
+
+		/** Bytes the message quotes: the IP header and first bytes of a
+		 *  packet in error, or the whole ICMP message of an echo request */
+		byte[] quote;
+
+		/** Number of bytes in the quote */
+		int quoteLength;
+
+		Message()
+		{ this.quote = new byte[MAX_IP_HEADER_LENGTH + QUOTED_DATA]; }
+	}
+
+	/** Router whose messages are sent */
+	private Router router;
+
+	/** Buckets of each ICMP type; created when first used */
+	private final TokenBucket[] typeBuckets;
+
+	/** Buckets of destinations of errors */
+	private final HashedTokenBuckets destinationBuckets;
+
+	/** Queue of messages, as a ring; guarded by this generator */
+	private Message[] queue;
+
+	/** Index of the oldest message in the queue */
+	private int head;
+
+	/** Number of messages in the queue */
+	private int count;
+
+	/** Number of messages sent */
+	private long sent;
+
+	/** Number of messages not sent because of a rate limit */
+	private long rateLimited;
+
+	/** Number of messages dropped because the queue was full */
+	private long overflows;
+
+	/** True once the generator has been shut down */
+	private boolean shutdown;
+
+	/**
+	 * Create a generator for a router, and start its thread.
+	 * @param router router whose messages are sent
+	 */
+	public IcmpGenerator(Router router)
+	{
+		this.router = router;
+		this.typeBuckets = new TokenBucket[256];
+		this.destinationBuckets = new HashedTokenBuckets(DESTINATION_RATE,
+				DESTINATION_BURST, DESTINATION_BUCKET_BITS);
+		this.queue = new Message[MAX_QUEUED];
+		for (int i = 0; i < this.queue.length; i++)
+		{ this.queue[i] = new Message(); }
+		this.head = 0;
+		this.count = 0;
+		this.sent = 0;
+		this.rateLimited = 0;
+		this.overflows = 0;
+		this.shutdown = false;
+		Thread thread = new Thread(new Runnable() {
+					public void run()
+					{ IcmpGenerator.this.run(); }
+				}, "icmp-generator");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Send an ICMP error about a received IPv4 packet back to the packet's
+	 * sender, through the neighbor the packet came from, unless RFC 1812
+	 * forbids an error about the packet or a rate limit applies. The error
+	 * quotes the packet's IP header and the first 8 bytes of its payload,
+	 * copied from the frame before this returns.
+	 * @param frame buffer holding the Ethernet frame of the packet in error
+	 * @param offset index of the frame's first byte in the buffer
+	 * @param length number of bytes in the frame
+	 * @param inIface interface on which the frame was received
+	 * @param type ICMP type
+	 * @param code ICMP code
+	 * @return true if the error was queued, otherwise false
+	 */
+	public boolean sendError(byte[] frame, int offset, int length,
+			Iface inIface, byte type, byte code)
+	{
+		int ip = offset + ETHERNET_HEADER_LENGTH;
+		if (length < ETHERNET_HEADER_LENGTH + 20
+				|| (frame[offset] & 0x01) != 0)
+		{ return false; }
+		// Quote no Ethernet padding
+		int headerLength = (frame[ip] & 0x0f) * 4;
+		int available = Math.min(length - ETHERNET_HEADER_LENGTH,
+				((frame[ip + 2] & 0xff) << 8) | (frame[ip + 3] & 0xff));
+		if (headerLength < 20 || headerLength > available)
+		{ return false; }
+
+		// Errors about errors, later fragments, or broadcast and multicast
+		// packets could multiply; errors about errors could loop
+		int sourceIp = getInt(frame, ip + 12);
+		int destinationIp = getInt(frame, ip + 16);
+		if ((frame[ip + 6] & 0x1f) != 0 || frame[ip + 7] != 0
+				|| !isUnicast(sourceIp) || !isUnicast(destinationIp))
+		{ return false; }
+		if (IPv4.PROTOCOL_ICMP == frame[ip + 9])
+		{
+			if (headerLength >= available)
+			{ return false; }
+			byte icmpType = frame[ip + headerLength];
+			if (icmpType != ICMP.TYPE_ECHO_REQUEST
+					&& icmpType != ICMP.TYPE_ECHO_REPLY)
+			{ return false; }
+		}
+
+		int quoted = Math.min(available, headerLength + QUOTED_DATA);
+		return this.enqueue(frame, offset, ip, quoted, inIface, type, code,
+				sourceIp, destinationIp);
+	}
+
+	/**
+	 * Send an ICMP echo reply to a received echo request, unless the rate
+	 * limit applies. A request without IP options that is not fragmented is
+	 * turned into its reply in place, in the frame's own buffer, and sent at
+	 * once without allocating anything; other requests are copied from the 
+	 * frame and answered by the generator's thread.
+	 * @param frame buffer holding the Ethernet frame of the echo request; 
+	 *        it may be changed
+	 * @param offset index of the frame's first byte in the buffer
+	 * @param length number of bytes in the frame
+	 * @param inIface interface on which the frame was received
+	 * @return true if the reply was sent or queued, otherwise false
+	 */
+	public boolean sendEchoReply(byte[] frame, int offset, int length,
+			Iface inIface)
+	{
+		int ip = offset + ETHERNET_HEADER_LENGTH;
+		if (length < ETHERNET_HEADER_LENGTH + 20)
+		{ return false; }
+		int headerLength = (frame[ip] & 0x0f) * 4;
+		int totalLength = ((frame[ip + 2] & 0xff) << 8)
+				| (frame[ip + 3] & 0xff);
+		if (headerLength < 20 || totalLength < headerLength + 4
+				|| totalLength > length - ETHERNET_HEADER_LENGTH)
+		{ return false; }
+
+		int sourceIp = getInt(frame, ip + 12);
+		if (!isUnicast(sourceIp))
+		{ return false; }
+		if (20 == headerLength && 0 == (frame[ip + 6] & 0x3f)
+				&& 0 == frame[ip + 7])
+		{
+			if (!this.admit(ICMP.TYPE_ECHO_REPLY, sourceIp, System.nanoTime()))
+			{ return false; }
+			replyInPlace(frame, offset, inIface);
+			if (!this.router.sendFrame(frame, offset,
+					ETHERNET_HEADER_LENGTH + totalLength, inIface))
+			{ return false; }
+			synchronized(this)
+			{ this.sent++; }
+			return true;
+		}
+		return this.enqueue(frame, offset, ip + headerLength,
+				totalLength - headerLength, inIface, ICMP.TYPE_ECHO_REPLY,
+				(byte)0, sourceIp, getInt(frame, ip + 16));
+	}
+
+	/**
+	 * Queue a message, if the rate limits and the queue allow it.
+	 */
+	private synchronized boolean enqueue(byte[] frame, int offset,
+			int quoteOffset, int quoteLength, Iface inIface, byte type,
+			byte code, int sourceIp, int destinationIp)
+	{
+		if (this.shutdown)
+		{ return false; }
+		if (this.count == this.queue.length)
+		{
+			this.overflows++;
+			return false;
+		}
+		if (!this.admit(type, sourceIp, System.nanoTime()))
+		{ return false; }
+
+		Message message =
+				this.queue[(this.head + this.count) % this.queue.length];
+		message.type = type;
+		message.code = code;
+		message.inIface = inIface;
+		long sourceMac = 0;
+		for (int i = 6; i < 12; i++)
+		{ sourceMac = (sourceMac << 8) | (frame[offset + i] & 0xff); }
+		message.sourceMac = sourceMac;
+		message.sourceIp = sourceIp;
+		message.destinationIp = destinationIp;
+		if (message.quote.length < quoteLength)
+		{ message.quote = new byte[quoteLength]; }
+		System.arraycopy(frame, quoteOffset, message.quote, 0, quoteLength);
+		message.quoteLength = quoteLength;
+		this.count++;
+		if (1 == this.count)
+		{ this.notify(); }
+		return true;
+	}
+
+	/**
+	 * Take a token for a message from the buckets that limit it.
+	 * @param type ICMP type of the message
+	 * @param destination IP address the message is sent to
+	 * @param now current time, from System.nanoTime
+	 * @return true if the message may be sent, otherwise false
+	 */
+	private synchronized boolean admit(byte type, int destination, long now)
+	{
+		if (this.shutdown)
+		{ return false; }
+		TokenBucket typeBucket = this.typeBuckets[type & 0xff];
+		if (null == typeBucket)
+		{
+			typeBucket = (ICMP.TYPE_ECHO_REPLY == type)
+					? new TokenBucket(ECHO_RATE, ECHO_BURST)
+					: new TokenBucket(ERROR_RATE, ERROR_BURST);
+			this.typeBuckets[type & 0xff] = typeBucket;
+		}
+		if ((type != ICMP.TYPE_ECHO_REPLY
+					&& !this.destinationBuckets.tryTake(destination, now))
+				|| !typeBucket.tryTake(now))
+		{
+			this.rateLimited++;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Turn an echo request with a 20-byte IP header into its reply, in
+	 * place: swap the MAC and IP addresses, give the reply a fresh TTL, and
+	 * make it a reply. Checksums are updated incrementally; swapping the
+	 * addresses leaves the IP checksum as it is.
+	 */
+	private static void replyInPlace(byte[] frame, int offset, Iface inIface)
+	{
+		System.arraycopy(frame, offset + 6, frame, offset, 6);
+		long mac = inIface.getMacAddress().toLong();
+		for (int i = 0; i < 6; i++)
+		{ frame[offset + 6 + i] = (byte)(mac >>> (8 * (5 - i))); }
+
+		int ip = offset + ETHERNET_HEADER_LENGTH;
+		for (int i = 12; i < 16; i++)
+		{
+			byte b = frame[ip + i];
+			frame[ip + i] = frame[ip + i + 4];
+			frame[ip + i + 4] = b;
+		}
+		int protocol = frame[ip + 9] & 0xff;
+		Checksum.update16(frame, ip + 10, ((frame[ip + 8] & 0xff) << 8)
+				| protocol, (REPLY_TTL << 8) | protocol);
+		frame[ip + 8] = (byte)REPLY_TTL;
+
+		int icmp = ip + 20;
+		int code = frame[icmp + 1] & 0xff;
+		Checksum.update16(frame, icmp + 2,
+				(ICMP.TYPE_ECHO_REQUEST << 8) | code,
+				(ICMP.TYPE_ECHO_REPLY << 8) | code);
+		frame[icmp] = ICMP.TYPE_ECHO_REPLY;
+	}
+
+	/**
+	 * Build and send queued messages until the generator is shut down.
+	 */
+	private void run()
+	{
+		// Take each message in exchange for a spare, so the queue's slot can
+		// be reused while the message is sent
+		Message spare = new Message();
+		while (true)
+		{
+			Message message;
+			synchronized(this)
+			{
+				while (0 == this.count && !this.shutdown)
+				{
+					try
+					{ this.wait(); }
+					catch (InterruptedException e)
+					{ }
+				}
+				if (this.shutdown)
+				{ return; }
+				message = this.queue[this.head];
+				this.queue[this.head] = spare;
+				this.head = (this.head + 1) % this.queue.length;
+				this.count--;
+			}
+
+			if (this.send(message))
+			{
+				synchronized(this)
+				{ this.sent++; }
+			}
+			spare = message;
+		}
+	}
+
+	/**
+	 * Build a queued message and send it.
+	 * @return true if the message was sent, otherwise false
+	 */
+	private boolean send(Message message)
+	{
+		byte[] data;
+		int sourceIp;
+		if (ICMP.TYPE_ECHO_REPLY == message.type)
+		{
+			// Reply with the request's identifier, sequence number, and
+			// data, if the request arrived intact
+			if (!validChecksum(message.quote, message.quoteLength))
+			{ return false; }
+			data = new byte[message.quoteLength - 4];
+			System.arraycopy(message.quote, 4, data, 0, data.length);
+			sourceIp = message.destinationIp;
+		}
+		else
+		{
+			// Quote the packet after 4 unused bytes; a port is unreachable
+			// at the address the packet was sent to
+			data = new byte[4 + message.quoteLength];
+			System.arraycopy(message.quote, 0, data, 4, message.quoteLength);
+			if (ICMP.TYPE_DESTINATION_UNREACHABLE == message.type
+					&& ICMP.CODE_PORT_UNREACHABLE == message.code)
+			{ sourceIp = message.destinationIp; }
+			else
+			{ sourceIp = message.inIface.getIpAddress(); }
+		}
+
+		ICMP icmp = new ICMP();
+		icmp.setIcmpType(message.type);
+		icmp.setIcmpCode(message.code);
+		icmp.setPayload(new Data(data));
+
+		IPv4 ip = new IPv4();
+		ip.setTtl((byte)REPLY_TTL);
+		ip.setProtocol(IPv4.PROTOCOL_ICMP);
+		ip.setSourceAddress(sourceIp);
+		ip.setDestinationAddress(message.sourceIp);
+		ip.setPayload(icmp);
+
+		byte[] mac = new byte[Ethernet.DATALAYER_ADDRESS_LENGTH];
+		for (int i = 0; i < mac.length; i++)
+		{ mac[i] = (byte)(message.sourceMac >>> (8 * (5 - i))); }
+		Ethernet ether = new Ethernet();
+		ether.setEtherType(Ethernet.TYPE_IPv4);
+		ether.setSourceMACAddress(message.inIface.getMacAddress().toBytes());
+		ether.setDestinationMACAddress(mac);
+		ether.setPayload(ip);
+		return this.router.sendPacket(ether, message.inIface);
+	}
+
+	/**
+	 * @return true if an IP address can be the source or destination of a
+	 *         packet an error is sent about: not 0, a loopback address, a
+	 *         multicast address, or the limited broadcast address
+	 */
+	private static boolean isUnicast(int ip)
+	{
+		int first = ip >>> 24;
+		return ip != 0 && first != 127 && first < 224;
+	}
+
+	/**
+	 * @return true if the checksum of an ICMP message is valid
+	 */
+	private static boolean validChecksum(byte[] message, int length)
+	{
+		int sum = 0;
+		for (int i = 0; i + 1 < length; i += 2)
+		{ sum += ((message[i] & 0xff) << 8) | (message[i + 1] & 0xff); }
+		if (length % 2 > 0)
+		{ sum += (message[length - 1] & 0xff) << 8; }
+		sum = (sum & 0xffff) + (sum >>> 16);
+		sum = (sum & 0xffff) + (sum >>> 16);
+		return 0xffff == sum;
+	}
+
+	private static int getInt(byte[] buf, int offset)
+	{
+		return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16)
+				| ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+	}
+
+	/**
+	 * @return number of messages sent
+	 */
+	public synchronized long getSent()
+	{ return this.sent; }
+
+	/**
+	 * @return number of messages not sent because of a rate limit
+	 */
+	public synchronized long getRateLimited()
+	{ return this.rateLimited; }
+
+	/**
+	 * Stop sending messages, and drop all queued messages.
+	 */
+	public void shutdown()
+	{
+		synchronized(this)
+		{
+			this.shutdown = true;
+			this.count = 0;
+			this.notify();
+		}
+	}
+
+	public synchronized String toString()
+	{
+		return String.format("ICMP generator: %d messages sent, %d rate "
+				+ "limited, %d dropped on a full queue", this.sent,
+				this.rateLimited, this.overflows);
+	}
+}
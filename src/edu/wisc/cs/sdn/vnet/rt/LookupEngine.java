@@ -0,0 +1,86 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.List;
+
+/**
+ * A structure that stores route entries by prefix and answers longest prefix
+ * match queries for a route table. An engine is modified by one thread at a
+ * time, and lookups may run concurrently on an engine that is no longer 
+ * being modified.
+ */
+public interface LookupEngine
+{
+	/**
+	 * Find the entry with the longest prefix that matches an IP address.
+	 * @param ip IP address
+	 * @return the matching route entry, null if none exists
+	 */
+	public RouteEntry lookup(int ip);
+
+	/**
+	 * Find the entries with the longest prefixes that match a batch of IP
+	 * addresses.
+	 * @param ips IP addresses
+	 * @param count number of addresses, from the start of the array, to look up
+	 * @param out array in which to store the matching route entries, with 
+	 *        null for addresses that have no match
+	 */
+	public void lookup(int[] ips, int count, RouteEntry[] out);
+
+	/**
+	 * Find the entry stored for an exact prefix.
+	 * @param dstIp destination IP of the prefix
+	 * @param maskIp subnet mask of the prefix
+	 * @return the entry stored for the prefix, null if none exists
+	 */
+	public RouteEntry get(int dstIp, int maskIp);
+
+	/**
+	 * @return all stored entries, in order of prefix address and then 
+	 *         prefix length
+	 */
+	public List<RouteEntry> getEntries();
+
+	/**
+	 * Add or replace the entry for a prefix.
+	 * @param dstIp destination IP of the prefix
+	 * @param maskIp subnet mask of the prefix
+	 * @param entry route entry to store for the prefix
+	 */
+	public void insert(int dstIp, int maskIp, RouteEntry entry);
+
+	/**
+	 * Add or replace the entries for a batch of prefixes, which is faster 
+	 * than adding them one at a time. Each entry is stored for its own 
+	 * destination and subnet mask; if the batch holds several entries for 
+	 * one prefix, the last one is kept.
+	 * @param entries route entries to store
+	 */
+	public void insertAll(List<RouteEntry> entries);
+
+	/**
+	 * Remove the entry for a prefix.
+	 * @param dstIp destination IP of the prefix
+	 * @param maskIp subnet mask of the prefix
+	 * @return true if an entry was found and removed, otherwise false
+	 */
+	public boolean remove(int dstIp, int maskIp);
+
+	/**
+	 * Create a copy that can be modified without affecting lookups on this
+	 * engine. The copy shares as much structure as possible with this 
+	 * engine, so this engine must not be modified after it has been copied.
+	 * @return a modifiable copy of the engine
+	 */
+	public LookupEngine copy();
+
+	/**
+	 * Remove all entries.
+	 */
+	public void clear();
+
+	/**
+	 * @return number of prefixes stored
+	 */
+	public int size();
+}
@@ -0,0 +1,154 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Arrays;
+
+/**
+ * A map from prefix keys to route identifiers, stored in two primitive
+ * arrays with open addressing and linear probing. Identifiers are positive,
+ * so 0 marks an empty slot and stands for a missing key.
+ */
+class PrefixIdMap
+{
+	/** Keys in each slot */
+	private long[] keys;
+
+	/** Identifiers in each slot; 0 if the slot is empty */
+	private int[] ids;
+
+	/** Number of keys in the map */
+	private int size;
+
+	/**
+	 * Initialize an empty map.
+	 */
+	PrefixIdMap()
+	{
+		this.keys = new long[16];
+		this.ids = new int[16];
+		this.size = 0;
+	}
+
+	/**
+	 * @return a copy that can be modified without affecting reads on this
+	 *         map
+	 */
+	PrefixIdMap copy()
+	{
+		PrefixIdMap copy = new PrefixIdMap();
+		copy.keys = this.keys.clone();
+		copy.ids = this.ids.clone();
+		copy.size = this.size;
+		return copy;
+	}
+
+	/**
+	 * @return number of keys in the map
+	 */
+	int size()
+	{ return this.size; }
+
+	/**
+	 * @return the identifier for a key; 0 if the key is not in the map
+	 */
+	int get(long key)
+	{
+		int mask = this.ids.length - 1;
+		for (int i = slot(key, mask); this.ids[i] != 0; i = (i + 1) & mask)
+		{
+			if (this.keys[i] == key)
+			{ return this.ids[i]; }
+		}
+		return 0;
+	}
+
+	/**
+	 * Add or replace the identifier for a key.
+	 * @param id positive route identifier
+	 */
+	void put(long key, int id)
+	{
+		int mask = this.ids.length - 1;
+		int i = slot(key, mask);
+		while (this.ids[i] != 0 && this.keys[i] != key)
+		{ i = (i + 1) & mask; }
+		if (0 == this.ids[i])
+		{
+			this.size++;
+			this.keys[i] = key;
+		}
+		this.ids[i] = id;
+
+		// Keep the map at most half full
+		if (2 * this.size > this.ids.length)
+		{ this.resize(2 * this.ids.length); }
+	}
+
+	/**
+	 * Remove a key.
+	 * @return the identifier the key had; 0 if the key was not in the map
+	 */
+	int remove(long key)
+	{
+		int mask = this.ids.length - 1;
+		int i = slot(key, mask);
+		while (this.ids[i] != 0 && this.keys[i] != key)
+		{ i = (i + 1) & mask; }
+		int id = this.ids[i];
+		if (0 == id)
+		{ return 0; }
+		this.size--;
+
+		// Shift later keys in the probe sequence back into the gap
+		int gap = i;
+		for (int j = (gap + 1) & mask; this.ids[j] != 0; j = (j + 1) & mask)
+		{
+			int home = slot(this.keys[j], mask);
+			if (((j - home) & mask) >= ((j - gap) & mask))
+			{
+				this.keys[gap] = this.keys[j];
+				this.ids[gap] = this.ids[j];
+				gap = j;
+			}
+		}
+		this.ids[gap] = 0;
+		return id;
+	}
+
+	/**
+	 * @return all keys in the map, in increasing order
+	 */
+	long[] keys()
+	{
+		long[] sorted = new long[this.size];
+		int count = 0;
+		for (int i = 0; i < this.ids.length; i++)
+		{
+			if (this.ids[i] != 0)
+			{ sorted[count++] = this.keys[i]; }
+		}
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	private void resize(int capacity)
+	{
+		long[] oldKeys = this.keys;
+		int[] oldIds = this.ids;
+		this.keys = new long[capacity];
+		this.ids = new int[capacity];
+		int mask = capacity - 1;
+		for (int i = 0; i < oldIds.length; i++)
+		{
+			if (0 == oldIds[i])
+			{ continue; }
+			int j = slot(oldKeys[i], mask);
+			while (this.ids[j] != 0)
+			{ j = (j + 1) & mask; }
+			this.keys[j] = oldKeys[i];
+			this.ids[j] = oldIds[i];
+		}
+	}
+
+	private static int slot(long key, int mask)
+	{ return (int)((key * 0x9e3779b97f4a7c15L) >>> 32) & mask; }
+}
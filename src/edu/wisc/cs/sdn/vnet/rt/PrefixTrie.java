@@ -0,0 +1,466 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A path-compressed binary (Patricia) trie that maps IPv4 prefixes to route
+ * entries and answers longest prefix match queries. Every node stores the
+ * full prefix it represents, so chains of single-child nodes are never
+ * created and a lookup visits at most 33 nodes, regardless of the number of
+ * prefixes in the trie.
+ * <p>
+ * A copy shares all nodes with the original. Nodes belong to the trie that
+ * created them, and a trie clones any node it does not own before changing
+ * it, so modifying a copy only allocates the nodes on the changed path and
+ * never disturbs lookups on the original.
+ */
+public class PrefixTrie implements LookupEngine
+{
+	/** A node in the trie; nodes without an entry only exist as forks */
+	private static class Node
+	{
+		/** Prefix bits for this node; bits past the length are zero */
+		int prefix;
+
+		/** Number of significant bits in the prefix */
+		int length;
+
+		/** Route entry for this exact prefix; null if the node is a fork */
+		RouteEntry entry;
+
+		/** Sub-tries whose next bit after the prefix is 0 and 1 */
+		Node zero, one;
+
+		/** Trie that created the node and may modify it in place */
+		final Object owner;
+
+		Node(int prefix, int length, RouteEntry entry, Object owner)
+		{
+			this.prefix = prefix;
+			this.length = length;
+			this.entry = entry;
+			this.owner = owner;
+		}
+	}
+
+	/** Number of addresses walked down the trie together in a batch lookup */
+	private static final int BATCH_GROUP = 16;
+
+	/** Root of the trie; null if the trie is empty */
+	private Node root;
+
+	/** Number of prefixes stored in the trie */
+	private int size;
+
+	/** Token marking the nodes this trie may modify in place */
+	private Object owner;
+
+	/**
+	 * Initialize an empty trie.
+	 */
+	public PrefixTrie()
+	{
+		this.root = null;
+		this.size = 0;
+		this.owner = new Object();
+	}
+
+	public PrefixTrie copy()
+	{
+		PrefixTrie copy = new PrefixTrie();
+		copy.root = this.root;
+		copy.size = this.size;
+		return copy;
+	}
+
+	/**
+	 * @return number of prefixes stored in the trie
+	 */
+	public int size()
+	{ return this.size; }
+
+	/**
+	 * Find the entry with the longest prefix that matches an IP address.
+	 * @param ip IP address
+	 * @return the matching route entry, null if none exists
+	 */
+	public RouteEntry lookup(int ip)
+	{ return this.lookup(ip, 32); }
+
+	/**
+	 * Find the entries with the longest prefixes that match a batch of IP
+	 * addresses. Addresses are walked down the trie in groups, one level at
+	 * a time, so the memory accesses for the addresses in a group overlap.
+	 * @param ips IP addresses
+	 * @param count number of addresses, from the start of the array, to look up
+	 * @param out array in which to store the matching route entries, with 
+	 *        null for addresses that have no match
+	 */
+	public void lookup(int[] ips, int count, RouteEntry[] out)
+	{
+		Node[] nodes = new Node[Math.min(count, BATCH_GROUP)];
+		for (int base = 0; base < count; base += BATCH_GROUP)
+		{
+			int groupSize = Math.min(BATCH_GROUP, count - base);
+			for (int i = 0; i < groupSize; i++)
+			{
+				nodes[i] = this.root;
+				out[base + i] = null;
+			}
+
+			boolean active = true;
+			while (active)
+			{
+				active = false;
+				for (int i = 0; i < groupSize; i++)
+				{
+					Node node = nodes[i];
+					if (null == node)
+					{ continue; }
+					int ip = ips[base + i];
+					if ((ip & mask(node.length)) != node.prefix)
+					{ node = null; }
+					else
+					{
+						if (node.entry != null)
+						{ out[base + i] = node.entry; }
+						if (32 == node.length)
+						{ node = null; }
+						else
+						{
+							node = (0 == bit(ip, node.length)) 
+									? node.zero : node.one;
+						}
+					}
+					nodes[i] = node;
+					active |= (node != null);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find the entry with the longest prefix, no longer than a given length,
+	 * that matches an IP address.
+	 * @param ip IP address
+	 * @param maxLength maximum prefix length to consider
+	 * @return the matching route entry, null if none exists
+	 */
+	public RouteEntry lookup(int ip, int maxLength)
+	{
+		RouteEntry best = null;
+		Node node = this.root;
+		while (node != null && node.length <= maxLength)
+		{
+			if ((ip & mask(node.length)) != node.prefix)
+			{ break; }
+			if (node.entry != null)
+			{ best = node.entry; }
+			if (32 == node.length)
+			{ break; }
+			node = (0 == bit(ip, node.length)) ? node.zero : node.one;
+		}
+		return best;
+	}
+
+	/**
+	 * Find the entry stored for an exact prefix.
+	 * @param dstIp destination IP of the prefix
+	 * @param maskIp subnet mask of the prefix
+	 * @return the entry stored for the prefix, null if none exists
+	 */
+	public RouteEntry get(int dstIp, int maskIp)
+	{
+		int length = maskLength(maskIp);
+		int prefix = dstIp & mask(length);
+		Node node = this.root;
+		while (node != null && node.length <= length
+				&& (prefix & mask(node.length)) == node.prefix)
+		{
+			if (node.length == length)
+			{ return node.entry; }
+			node = (0 == bit(prefix, node.length)) ? node.zero : node.one;
+		}
+		return null;
+	}
+
+	public List<RouteEntry> getEntries()
+	{
+		List<RouteEntry> entries = new ArrayList<RouteEntry>(this.size);
+		collect(this.root, entries);
+		return entries;
+	}
+
+	private static void collect(Node node, List<RouteEntry> entries)
+	{
+		if (null == node)
+		{ return; }
+		if (node.entry != null)
+		{ entries.add(node.entry); }
+		collect(node.zero, entries);
+		collect(node.one, entries);
+	}
+
+	/**
+	 * Add or replace the entry for a prefix.
+	 * @param dstIp destination IP of the prefix
+	 * @param maskIp subnet mask of the prefix
+	 * @param entry route entry to store for the prefix
+	 */
+	public void insert(int dstIp, int maskIp, RouteEntry entry)
+	{
+		int length = maskLength(maskIp);
+		this.root = this.insert(this.root, dstIp & mask(length), length,
+				entry);
+	}
+
+	/**
+	 * Add or replace the entries for a batch of prefixes. Entries are added
+	 * in address order, so consecutive inserts walk the same recently 
+	 * visited nodes.
+	 * @param entries route entries to store
+	 */
+	public void insertAll(List<RouteEntry> entries)
+	{
+		RouteEntry[] sorted = entries.toArray(new RouteEntry[entries.size()]);
+		Arrays.sort(sorted, new Comparator<RouteEntry>() {
+			public int compare(RouteEntry a, RouteEntry b)
+			{
+				int order = Integer.compareUnsigned(
+						a.getDestinationAddress() & a.getMaskAddress(),
+						b.getDestinationAddress() & b.getMaskAddress());
+				if (order != 0)
+				{ return order; }
+				return Integer.compareUnsigned(a.getMaskAddress(), 
+						b.getMaskAddress());
+			}
+		});
+		for (RouteEntry entry : sorted)
+		{
+			this.insert(entry.getDestinationAddress(), entry.getMaskAddress(),
+					entry);
+		}
+	}
+
+	private Node insert(Node node, int prefix, int length, RouteEntry entry)
+	{
+		if (null == node)
+		{
+			this.size++;
+			return new Node(prefix, length, entry, this.owner);
+		}
+
+		int common = commonLength(node.prefix, node.length, prefix, length);
+		if (common == node.length && common == length)
+		{
+			// Same prefix; replace the entry
+			if (null == node.entry)
+			{ this.size++; }
+			node = this.writable(node);
+			node.entry = entry;
+			return node;
+		}
+		else if (common == node.length)
+		{
+			// Existing node covers the new prefix; descend
+			node = this.writable(node);
+			if (0 == bit(prefix, node.length))
+			{ node.zero = this.insert(node.zero, prefix, length, entry); }
+			else
+			{ node.one = this.insert(node.one, prefix, length, entry); }
+			return node;
+		}
+
+		this.size++;
+		Node added = new Node(prefix, length, entry, this.owner);
+		if (common == length)
+		{
+			// New prefix covers the existing node; push the node down
+			attach(added, node);
+			return added;
+		}
+
+		// Prefixes diverge; join them under a fork
+		Node fork = new Node(prefix & mask(common), common, null, this.owner);
+		attach(fork, node);
+		attach(fork, added);
+		return fork;
+	}
+
+	/**
+	 * Remove the entry for a prefix.
+	 * @param dstIp destination IP of the prefix
+	 * @param maskIp subnet mask of the prefix
+	 * @return true if an entry was found and removed, otherwise false
+	 */
+	public boolean remove(int dstIp, int maskIp)
+	{
+		int length = maskLength(maskIp);
+		int before = this.size;
+		this.root = this.remove(this.root, dstIp & mask(length), length);
+		return (this.size != before);
+	}
+
+	private Node remove(Node node, int prefix, int length)
+	{
+		if (null == node || node.length > length
+				|| (prefix & mask(node.length)) != node.prefix)
+		{ return node; }
+
+		if (node.length == length)
+		{
+			if (null == node.entry)
+			{ return node; }
+			node = this.writable(node);
+			node.entry = null;
+			this.size--;
+		}
+		else
+		{
+			Node child = (0 == bit(prefix, node.length)) ? node.zero : node.one;
+			Node newChild = this.remove(child, prefix, length);
+			if (newChild == child)
+			{ return node; }
+			node = this.writable(node);
+			if (0 == bit(prefix, node.length))
+			{ node.zero = newChild; }
+			else
+			{ node.one = newChild; }
+		}
+
+		// Drop forks that no longer join two sub-tries
+		if (node.entry != null || (node.zero != null && node.one != null))
+		{ return node; }
+		return (node.zero != null) ? node.zero : node.one;
+	}
+
+	/**
+	 * Remove all entries from the trie.
+	 */
+	public void clear()
+	{
+		this.root = null;
+		this.size = 0;
+	}
+
+	/**
+	 * Write the trie to a snapshot: the number of prefixes, then the nodes
+	 * in pre-order. Each node is written as a byte of flags saying whether
+	 * it has an entry and each child, its length, its prefix, and its entry.
+	 * @param ifaceIndices indices of the interfaces routes may use
+	 */
+	void write(DataOutput out, Map<Iface,Integer> ifaceIndices)
+			throws IOException
+	{
+		out.writeInt(this.size);
+		if (this.root != null)
+		{ write(this.root, out, ifaceIndices); }
+	}
+
+	private static void write(Node node, DataOutput out,
+			Map<Iface,Integer> ifaceIndices) throws IOException
+	{
+		out.writeByte(((node.entry != null) ? 1 : 0)
+				| ((node.zero != null) ? 2 : 0) | ((node.one != null) ? 4 : 0));
+		out.writeByte(node.length);
+		out.writeInt(node.prefix);
+		if (node.entry != null)
+		{ FibSnapshot.writeEntry(out, node.entry, ifaceIndices); }
+		if (node.zero != null)
+		{ write(node.zero, out, ifaceIndices); }
+		if (node.one != null)
+		{ write(node.one, out, ifaceIndices); }
+	}
+
+	/**
+	 * Read a trie written to a snapshot by write.
+	 * @param ifaces interfaces routes may use, by index
+	 * @return the trie
+	 */
+	static PrefixTrie read(ByteBuffer buf, Iface[] ifaces) throws IOException
+	{
+		PrefixTrie trie = new PrefixTrie();
+		trie.size = buf.getInt();
+		if (trie.size > 0)
+		{ trie.root = trie.read(buf, ifaces, 0); }
+		return trie;
+	}
+
+	private Node read(ByteBuffer buf, Iface[] ifaces, int minLength)
+			throws IOException
+	{
+		int flags = buf.get();
+		int length = buf.get();
+		if (length < minLength || length > 32)
+		{ throw new IOException("invalid prefix length " + length); }
+		Node node = new Node(buf.getInt(), length, null, this.owner);
+		if ((flags & 1) != 0)
+		{
+			node.entry = FibSnapshot.readEntry(buf, ifaces);
+			if (null == node.entry)
+			{ throw new IOException("missing route entry"); }
+		}
+		if ((flags & 2) != 0)
+		{ node.zero = this.read(buf, ifaces, length + 1); }
+		if ((flags & 4) != 0)
+		{ node.one = this.read(buf, ifaces, length + 1); }
+		return node;
+	}
+
+	/**
+	 * @return the node itself if this trie owns it, otherwise a clone of the
+	 *         node that this trie owns
+	 */
+	private Node writable(Node node)
+	{
+		if (node.owner == this.owner)
+		{ return node; }
+		Node clone = new Node(node.prefix, node.length, node.entry, this.owner);
+		clone.zero = node.zero;
+		clone.one = node.one;
+		return clone;
+	}
+
+	private static void attach(Node parent, Node child)
+	{
+		if (0 == bit(child.prefix, parent.length))
+		{ parent.zero = child; }
+		else
+		{ parent.one = child; }
+	}
+
+	/**
+	 * @return the value (0 or 1) of the bit at a position, counting from the
+	 *         most significant bit
+	 */
+	private static int bit(int value, int position)
+	{ return (value >>> (31 - position)) & 1; }
+
+	/**
+	 * @return a mask whose leading length bits are set
+	 */
+	static int mask(int length)
+	{ return (0 == length) ? 0 : (0xffffffff << (32 - length)); }
+
+	/**
+	 * @return the number of leading bits set in a subnet mask
+	 */
+	static int maskLength(int maskIp)
+	{ return Integer.numberOfLeadingZeros(~maskIp); }
+
+	private static int commonLength(int prefixA, int lengthA, int prefixB,
+			int lengthB)
+	{
+		int common = Integer.numberOfLeadingZeros(prefixA ^ prefixB);
+		return Math.min(common, Math.min(lengthA, lengthB));
+	}
+}
@@ -0,0 +1,142 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, direct-mapped cache of route lookup results, indexed by
+ * destination IP address. Results with no matching route are cached too.
+ * When a prefix changes, only the cached destinations inside that prefix
+ * are invalidated.
+ */
+public class RouteCache
+{
+	/** A cached lookup result */
+	private static class Line
+	{
+		/** Destination IP address */
+		final int ip;
+
+		/** Route entry that matched the destination; null if none matched */
+		final RouteEntry entry;
+
+		Line(int ip, RouteEntry entry)
+		{
+			this.ip = ip;
+			this.entry = entry;
+		}
+	}
+
+	/** Cache lines; each destination maps to exactly one line */
+	private AtomicReferenceArray<Line> lines;
+
+	/** Number of bits used to index the lines */
+	private int indexBits;
+
+	/** Number of lookups answered from the cache */
+	private LongAdder hits;
+
+	/** Number of lookups not answered from the cache */
+	private LongAdder misses;
+
+	/**
+	 * Initialize an empty cache.
+	 * @param capacity maximum number of destinations to cache; rounded up to
+	 *        a power of two
+	 */
+	public RouteCache(int capacity)
+	{
+		this.indexBits = Math.max(1,
+				32 - Integer.numberOfLeadingZeros(capacity - 1));
+		this.lines = new AtomicReferenceArray<Line>(1 << this.indexBits);
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+	}
+
+	/**
+	 * @return maximum number of destinations in the cache
+	 */
+	public int getCapacity()
+	{ return this.lines.length(); }
+
+	/**
+	 * @return number of lookups answered from the cache
+	 */
+	public long getHits()
+	{ return this.hits.sum(); }
+
+	/**
+	 * @return number of lookups not answered from the cache
+	 */
+	public long getMisses()
+	{ return this.misses.sum(); }
+
+	/**
+	 * Lookup the route entry that matches a given IP address, consulting a
+	 * lookup engine on a miss.
+	 * @param ip IP address
+	 * @param table route table whose published engine answers misses
+	 * @return the matching route entry, null if none exists
+	 */
+	RouteEntry lookup(int ip, RouteTable table)
+	{
+		int index = this.index(ip);
+		Line line = this.lines.get(index);
+		if (line != null && line.ip == ip)
+		{
+			this.hits.increment();
+			return line.entry;
+		}
+		this.misses.increment();
+
+		LookupEngine engine = table.getEngine();
+		RouteEntry entry = engine.lookup(ip);
+		line = new Line(ip, entry);
+		this.lines.set(index, line);
+
+		// A change published during the lookup may have invalidated the
+		// destination before the line was stored
+		if (table.getEngine() != engine)
+		{ this.lines.compareAndSet(index, line, null); }
+		return entry;
+	}
+
+	/**
+	 * Invalidate all cached destinations inside a prefix. Must be called
+	 * after the change to the prefix has been published.
+	 * @param dstIp destination IP of the prefix
+	 * @param maskIp subnet mask of the prefix
+	 */
+	void invalidate(int dstIp, int maskIp)
+	{
+		int prefix = dstIp & maskIp;
+		for (int i = 0; i < this.lines.length(); i++)
+		{
+			Line line = this.lines.get(i);
+			if (line != null && (line.ip & maskIp) == prefix)
+			{ this.lines.compareAndSet(i, line, null); }
+		}
+	}
+
+	/**
+	 * Invalidate all cached destinations.
+	 */
+	void clear()
+	{
+		for (int i = 0; i < this.lines.length(); i++)
+		{ this.lines.set(i, null); }
+	}
+
+	private int index(int ip)
+	{ return (ip * 0x9e3779b1) >>> (32 - this.indexBits); }
+
+	public String toString()
+	{
+		long hits = this.getHits();
+		long misses = this.getMisses();
+		long total = hits + misses;
+		return String.format("Route cache: %d lines, %d hits, %d misses (%s)",
+				this.getCapacity(), hits, misses, (0 == total) ? "-"
+						: String.format("%.1f%% hit", 100.0 * hits / total));
+	}
+}
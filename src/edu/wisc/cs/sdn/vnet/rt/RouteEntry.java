@@ -1,26 +1,46 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
+import java.util.Arrays;
+import java.util.Map;
+
 import net.floodlightcontroller.packet.IPv4;
 import edu.wisc.cs.sdn.vnet.Iface;
 
 /**
- * An entry in a route table.
+ * An entry in a route table. An entry may have several equal-cost paths,
+ * each with its own gateway and interface; the first path is the one 
+ * returned by getGatewayAddress and getInterface.
+ * <p>
+ * Entries are shared by published route table engines and the route cache,
+ * so they are never changed; RouteTable.update publishes a new entry 
+ * instead.
  * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
  */
 public class RouteEntry 
 {
 	/** Destination IP address */
-	private int destinationAddress;
+	private final int destinationAddress;
 	
 	/** Gateway IP address */
-	private int gatewayAddress;
+	private final int gatewayAddress;
 	
 	/** Subnet mask */
-	private int maskAddress;
+	private final int maskAddress;
 	
 	/** Router interface out which packets should be sent to reach
 	 * the destination or gateway */
-	private Iface iface;
+	private final Iface iface;
+	
+	/** Gateway IP addresses of the paths after the first; null if the 
+	 *  entry has one path */
+	private int[] extraGatewayAddresses;
+	
+	/** Router interfaces of the paths after the first; null if the entry 
+	 *  has one path */
+	private Iface[] extraIfaces;
+	
+	/** Most equal-cost paths an entry may have */
+	public static final int MAX_PATHS = 16;
 	
 	/**
 	 * Create a new route table entry.
@@ -37,6 +57,116 @@ public class RouteEntry
 		this.gatewayAddress = gatewayAddress;
 		this.maskAddress = maskAddress;
 		this.iface = iface;
+		this.extraGatewayAddresses = null;
+		this.extraIfaces = null;
+	}
+	
+	/**
+	 * @return number of equal-cost paths for the entry
+	 */
+	public int getPathCount()
+	{ 
+		return (null == this.extraIfaces) ? 1 
+				: 1 + this.extraIfaces.length; 
+	}
+	
+	/**
+	 * @param path index of a path, from 0 to getPathCount() - 1
+	 * @return gateway IP address for the path
+	 */
+	public int getGatewayAddress(int path)
+	{ 
+		return (0 == path) ? this.gatewayAddress 
+				: this.extraGatewayAddresses[path - 1]; 
+	}
+	
+	/**
+	 * @param path index of a path, from 0 to getPathCount() - 1
+	 * @return the router interface out which packets on the path should be
+	 *         sent
+	 */
+	public Iface getInterface(int path)
+	{ return (0 == path) ? this.iface : this.extraIfaces[path - 1]; }
+	
+	/**
+	 * Choose the path for a flow, so all packets in a flow take the same 
+	 * path and flows are spread evenly across the paths.
+	 * @param flowHash hash of the flow's addresses, protocol, and ports
+	 * @return index of the path for the flow
+	 */
+	public int selectPath(int flowHash)
+	{ 
+		return (int)(((flowHash & 0xffffffffL) * this.getPathCount()) 
+				>>> 32); 
+	}
+	
+	/**
+	 * Create an entry for the same prefix with one more path. The entry 
+	 * itself is not changed.
+	 * @param gatewayAddress gateway IP address for the new path
+	 * @param iface router interface for the new path
+	 * @return an entry with the new path appended; this entry if it already
+	 *         has the path; null if the entry already has MAX_PATHS paths
+	 */
+	public RouteEntry addPath(int gatewayAddress, Iface iface)
+	{
+		int count = this.getPathCount();
+		for (int path = 0; path < count; path++)
+		{
+			if (this.getGatewayAddress(path) == gatewayAddress 
+					&& this.getInterface(path) == iface)
+			{ return this; }
+		}
+		if (count == MAX_PATHS)
+		{ return null; }
+		
+		RouteEntry entry = new RouteEntry(this.destinationAddress, 
+				this.gatewayAddress, this.maskAddress, this.iface);
+		entry.extraGatewayAddresses = (null == this.extraGatewayAddresses)
+				? new int[1] : Arrays.copyOf(this.extraGatewayAddresses, count);
+		entry.extraIfaces = (null == this.extraIfaces)
+				? new Iface[1] : Arrays.copyOf(this.extraIfaces, count);
+		entry.extraGatewayAddresses[count - 1] = gatewayAddress;
+		entry.extraIfaces[count - 1] = iface;
+		return entry;
+	}
+	
+	/**
+	 * @return true if another entry has the same paths, in the same order, 
+	 *         otherwise false
+	 */
+	public boolean hasSamePaths(RouteEntry other)
+	{
+		return (this.gatewayAddress == other.gatewayAddress
+				&& this.iface == other.iface
+				&& Arrays.equals(this.extraGatewayAddresses, 
+						other.extraGatewayAddresses)
+				&& Arrays.equals(this.extraIfaces, other.extraIfaces));
+	}
+	
+	/**
+	 * Add the gateway of each of the entry's paths to a map.
+	 * @param gateways maps a gateway IP address to the interface out which
+	 *        it is reached
+	 */
+	void putGateways(Map<Integer,Iface> gateways)
+	{
+		for (int path = 0; path < this.getPathCount(); path++)
+		{
+			int gateway = this.getGatewayAddress(path);
+			if (gateway != 0)
+			{ gateways.put(gateway, this.getInterface(path)); }
+		}
+	}
+	
+	/**
+	 * @return a key that uniquely identifies the entry's prefix
+	 */
+	long getPrefixKey()
+	{
+		int length = PrefixTrie.maskLength(this.maskAddress);
+		int prefix = this.destinationAddress & PrefixTrie.mask(length);
+		return ((prefix & 0xffffffffL) << 6) | length;
 	}
 	
 	/**
@@ -50,9 +180,6 @@ public class RouteEntry
 	 */
 	public int getGatewayAddress()
 	{ return this.gatewayAddress; }
-
-    public void setGatewayAddress(int gatewayAddress)
-    { this.gatewayAddress = gatewayAddress; }
 	
 	/**
 	 * @return subnet mask 
@@ -66,16 +193,19 @@ public class RouteEntry
 	 */
 	public Iface getInterface()
 	{ return this.iface; }
-
-    public void setInterface(Iface iface)
-    { this.iface = iface; }
 	
 	public String toString()
 	{
-		return String.format("%s \t%s \t%s \t%s",
-				IPv4.fromIPv4Address(this.destinationAddress),
-				IPv4.fromIPv4Address(this.gatewayAddress),
-				IPv4.fromIPv4Address(this.maskAddress),
-				this.iface.getName());
+		String result = "";
+		for (int path = 0; path < this.getPathCount(); path++)
+		{
+			result += String.format("%s%s \t%s \t%s \t%s",
+					(path > 0) ? "\n" : "",
+					IPv4.fromIPv4Address(this.destinationAddress),
+					IPv4.fromIPv4Address(this.getGatewayAddress(path)),
+					IPv4.fromIPv4Address(this.maskAddress),
+					this.getInterface(path).getName());
+		}
+		return result;
 	}
 }
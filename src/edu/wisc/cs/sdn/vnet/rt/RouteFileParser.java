@@ -0,0 +1,382 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Parser for static route table files. Each line of a file holds a
+ * destination, gateway, and subnet mask in dotted-decimal form followed by an
+ * interface name, separated by spaces or tabs. Several lines for the same
+ * prefix give it several equal-cost paths. The file is memory-mapped and
+ * parsed byte by byte; large files are split at line boundaries into chunks
+ * that are parsed in parallel.
+ */
+public class RouteFileParser
+{
+	/** Minimum number of bytes for a chunk parsed by its own thread */
+	private static final int MIN_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	/** Names of the interfaces routes may use, as bytes */
+	private byte[][] ifaceNames;
+
+	/** Interfaces routes may use, in the same order as the names */
+	private Iface[] ifaces;
+
+	/** Maximum number of threads used to parse a file */
+	private int maxThreads;
+
+	/**
+	 * Create a parser for route files that refer to a set of interfaces.
+	 * @param interfaces interfaces routes may use; maps interface names to
+	 *        interfaces
+	 */
+	public RouteFileParser(Map<String,Iface> interfaces)
+	{
+		this.ifaceNames = new byte[interfaces.size()][];
+		this.ifaces = new Iface[interfaces.size()];
+		int i = 0;
+		for (Map.Entry<String,Iface> iface : interfaces.entrySet())
+		{
+			this.ifaceNames[i] = iface.getKey().getBytes();
+			this.ifaces[i] = iface.getValue();
+			i++;
+		}
+		this.maxThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * @param maxThreads maximum number of threads used to parse a file; 1
+	 *        parses every file on the calling thread
+	 */
+	public void setMaxThreads(int maxThreads)
+	{ this.maxThreads = Math.max(1, maxThreads); }
+
+	/**
+	 * Parse a route table file. Errors are reported on standard error, with
+	 * the line number at which they occurred.
+	 * @param filename name of the file containing the route table
+	 * @return the entries in the file, one per prefix, in the order the 
+	 *         prefixes first appear; null if the file could not be read or 
+	 *         contains an invalid entry
+	 */
+	public List<RouteEntry> parse(String filename)
+	{
+		MappedByteBuffer buf;
+		try (FileChannel channel = FileChannel.open(Paths.get(filename),
+				StandardOpenOption.READ))
+		{
+			if (channel.size() > Integer.MAX_VALUE)
+			{
+				System.err.println("Error loading route table, file too large: "
+						+ filename);
+				return null;
+			}
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return null;
+		}
+
+		// Split the file into chunks that start at the beginning of a line
+		int size = buf.capacity();
+		int chunkCount = Math.max(1, Math.min(this.maxThreads,
+				size / MIN_CHUNK_SIZE));
+		int[] bounds = new int[chunkCount + 1];
+		bounds[chunkCount] = size;
+		for (int i = 1; i < chunkCount; i++)
+		{
+			int pos = Math.max(bounds[i - 1], (int)((long)size * i / chunkCount));
+			while (pos < size && buf.get(pos - 1) != '\n')
+			{ pos++; }
+			bounds[i] = pos;
+		}
+
+		List<Chunk> chunks = new ArrayList<Chunk>(chunkCount);
+		for (int i = 0; i < chunkCount; i++)
+		{ chunks.add(new Chunk(buf, bounds[i], bounds[i + 1])); }
+
+		if (1 == chunkCount)
+		{ chunks.get(0).call(); }
+		else
+		{
+			ExecutorService pool = Executors.newFixedThreadPool(chunkCount);
+			try
+			{
+				for (Future<Chunk> future : pool.invokeAll(chunks))
+				{ future.get(); }
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				System.err.println(e.toString());
+				return null;
+			}
+			catch (ExecutionException e)
+			{
+				System.err.println(e.getCause().toString());
+				return null;
+			}
+			finally
+			{ pool.shutdown(); }
+		}
+
+		// Report the first error in the file, if any, and gather the entries
+		int lines = 0;
+		int total = 0;
+		for (Chunk chunk : chunks)
+		{
+			if (chunk.error != null)
+			{
+				System.err.println(String.format(
+						"Error loading route table, line %d: %s",
+						lines + chunk.lines, chunk.error));
+				return null;
+			}
+			lines += chunk.lines;
+			total += chunk.entries.size();
+		}
+
+		// Merge the lines for each prefix into one entry with several paths
+		List<RouteEntry> entries = new ArrayList<RouteEntry>(total);
+		PrefixIdMap indices = new PrefixIdMap();
+		for (Chunk chunk : chunks)
+		{
+			for (RouteEntry entry : chunk.entries)
+			{
+				int index = indices.get(entry.getPrefixKey()) - 1;
+				if (index < 0)
+				{
+					indices.put(entry.getPrefixKey(), entries.size() + 1);
+					entries.add(entry);
+					continue;
+				}
+				RouteEntry merged = entries.get(index).addPath(
+						entry.getGatewayAddress(), entry.getInterface());
+				if (null == merged)
+				{
+					System.err.println(String.format(
+							"Error loading route table, more than %d paths for %s",
+							RouteEntry.MAX_PATHS, entry.toString()));
+					return null;
+				}
+				entries.set(index, merged);
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * A contiguous range of whole lines in a route table file.
+	 */
+	private class Chunk implements Callable<Chunk>
+	{
+		/** Contents of the file */
+		private final ByteBuffer buf;
+
+		/** Position of the next byte to parse */
+		private int pos;
+
+		/** Position just past the end of the current line */
+		private int lineEnd;
+
+		/** Position just past the end of the chunk */
+		private final int end;
+
+		/** Number of lines parsed, including the line with an error */
+		int lines;
+
+		/** Entries parsed from the chunk */
+		List<RouteEntry> entries;
+
+		/** Description of the first invalid entry; null if none */
+		String error;
+
+		Chunk(ByteBuffer buf, int start, int end)
+		{
+			this.buf = buf;
+			this.pos = start;
+			this.end = end;
+			this.lines = 0;
+			this.entries = new ArrayList<RouteEntry>(
+					Math.max(16, (end - start) / 40));
+			this.error = null;
+		}
+
+		public Chunk call()
+		{
+			while (this.pos < this.end && null == this.error)
+			{
+				this.lines++;
+				this.lineEnd = this.pos;
+				while (this.lineEnd < this.end
+						&& this.buf.get(this.lineEnd) != '\n')
+				{ this.lineEnd++; }
+				this.parseLine();
+				this.pos = this.lineEnd + 1;
+			}
+			return this;
+		}
+
+		private void parseLine()
+		{
+			// Skip blank lines
+			this.skipSpace();
+			if (this.pos >= this.lineEnd || this.buf.get(this.pos) == '\r')
+			{ return; }
+
+			int start = this.pos;
+			int dstIp = this.parseIp();
+			if (null == this.error && 0 == dstIp)
+			{ this.error = "cannot convert " + this.token(start) + " to valid IP"; }
+			if (this.error != null)
+			{ return; }
+			this.skipSpace();
+
+			int gwIp = this.parseIp();
+			if (this.error != null)
+			{ return; }
+			this.skipSpace();
+
+			start = this.pos;
+			int maskIp = this.parseIp();
+			if (null == this.error && 0 == maskIp)
+			{ this.error = "cannot convert " + this.token(start) + " to valid IP"; }
+			if (this.error != null)
+			{ return; }
+			this.skipSpace();
+
+			Iface iface = this.parseIface();
+			if (this.error != null)
+			{ return; }
+			this.skipSpace();
+			if (this.pos < this.lineEnd && this.buf.get(this.pos) != '\r')
+			{
+				this.error = "invalid entry, unexpected text after interface";
+				return;
+			}
+
+			this.entries.add(new RouteEntry(dstIp, gwIp, maskIp, iface));
+		}
+
+		/**
+		 * Parse an IP address in dotted-decimal form.
+		 * @return the IP address
+		 */
+		private int parseIp()
+		{
+			int start = this.pos;
+			if (start >= this.lineEnd || this.buf.get(start) == '\r')
+			{
+				this.error = "invalid entry, missing field";
+				return 0;
+			}
+			int ip = 0;
+			for (int octet = 0; octet < 4; octet++)
+			{
+				if (octet > 0)
+				{
+					if (this.pos >= this.lineEnd
+							|| this.buf.get(this.pos) != '.')
+					{ break; }
+					this.pos++;
+				}
+				int value = 0;
+				int digits = 0;
+				while (this.pos < this.lineEnd && digits <= 3)
+				{
+					int c = this.buf.get(this.pos) - '0';
+					if (c < 0 || c > 9)
+					{ break; }
+					value = value * 10 + c;
+					digits++;
+					this.pos++;
+				}
+				if (0 == digits || digits > 3 || value > 255)
+				{
+					this.pos = start;
+					break;
+				}
+				ip = (ip << 8) | value;
+				if (3 == octet)
+				{
+					if (this.pos >= this.lineEnd || isSpace(this.buf.get(this.pos)))
+					{ return ip; }
+					this.pos = start;
+				}
+			}
+			this.error = "cannot convert " + this.token(start) + " to valid IP";
+			return 0;
+		}
+
+		/**
+		 * Parse an interface name.
+		 * @return the interface with the name
+		 */
+		private Iface parseIface()
+		{
+			int start = this.pos;
+			while (this.pos < this.lineEnd && isNameChar(this.buf.get(this.pos)))
+			{ this.pos++; }
+			int length = this.pos - start;
+			for (int i = 0; i < ifaceNames.length; i++)
+			{
+				byte[] name = ifaceNames[i];
+				if (name.length != length)
+				{ continue; }
+				int j = 0;
+				while (j < length && name[j] == this.buf.get(start + j))
+				{ j++; }
+				if (j == length)
+				{ return ifaces[i]; }
+			}
+			this.error = "invalid interface " + this.token(start);
+			return null;
+		}
+
+		private void skipSpace()
+		{
+			while (this.pos < this.lineEnd && isSpace(this.buf.get(this.pos))
+					&& this.buf.get(this.pos) != '\r')
+			{ this.pos++; }
+		}
+
+		/**
+		 * @return the text from a position up to the next space, for errors
+		 */
+		private String token(int start)
+		{
+			int stop = start;
+			while (stop < this.lineEnd && !isSpace(this.buf.get(stop)))
+			{ stop++; }
+			byte[] text = new byte[stop - start];
+			for (int i = 0; i < text.length; i++)
+			{ text[i] = this.buf.get(start + i); }
+			return new String(text);
+		}
+	}
+
+	private static boolean isSpace(byte b)
+	{ return (' ' == b || '\t' == b || '\r' == b); }
+
+	private static boolean isNameChar(byte b)
+	{
+		return ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z')
+				|| (b >= '0' && b <= '9'));
+	}
+}
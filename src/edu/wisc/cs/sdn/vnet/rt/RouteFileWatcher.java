@@ -0,0 +1,119 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a route table file and reloads the route table whenever the file
+ * changes. Reloads run on a background thread and apply only the entries
+ * that changed, so packets keep being forwarded during a reload.
+ */
+public class RouteFileWatcher implements Runnable
+{
+	/** Time to wait for a burst of changes to a file to finish, in ms */
+	private static final long SETTLE_TIME = 200;
+
+	/** Router whose route table is reloaded */
+	private Router router;
+
+	/** Route table file being watched */
+	private Path file;
+
+	/** Service notified of changes to the directory holding the file */
+	private WatchService watchService;
+
+	/** Thread waiting for changes */
+	private Thread thread;
+
+	/**
+	 * Start watching a route table file.
+	 * @param filename name of the file containing the static route table
+	 * @param router router whose route table is reloaded
+	 * @throws IOException if the file's directory cannot be watched
+	 */
+	public RouteFileWatcher(String filename, Router router) throws IOException
+	{
+		this.router = router;
+		this.file = Paths.get(filename).toAbsolutePath();
+		this.watchService = FileSystems.getDefault().newWatchService();
+
+		// Watch the directory, since editors often replace the file rather
+		// than modify it in place
+		this.file.getParent().register(this.watchService,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+
+		this.thread = new Thread(this, "route-file-watcher");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Stop watching the file.
+	 */
+	public void stop()
+	{
+		try
+		{ this.watchService.close(); }
+		catch (IOException e)
+		{ System.err.println(e.toString()); }
+		this.thread.interrupt();
+	}
+
+	public void run()
+	{
+		try
+		{
+			while (true)
+			{
+				WatchKey key = this.watchService.take();
+				boolean changed = this.drain(key);
+
+				// Wait for the writer to finish, gathering any further events
+				while ((key = this.watchService.poll(SETTLE_TIME,
+						TimeUnit.MILLISECONDS)) != null)
+				{ changed |= this.drain(key); }
+
+				if (changed)
+				{
+					String filename = this.file.toString();
+					if (!this.router.getRouteTable().reload(filename,
+							this.router))
+					{
+						System.err.println("Error reloading routing table from file "
+								+ filename + ", keeping current table");
+					}
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{ return; }
+		catch (ClosedWatchServiceException e)
+		{ return; }
+	}
+
+	/**
+	 * Consume the events for a watch key.
+	 * @return true if any event was for the route table file
+	 */
+	private boolean drain(WatchKey key)
+	{
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents())
+		{
+			if (StandardWatchEventKinds.OVERFLOW == event.kind()
+					|| this.file.getFileName().equals(event.context()))
+			{ changed = true; }
+		}
+		key.reset();
+		return changed;
+	}
+}
@@ -0,0 +1,294 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Compact storage for route entries, addressed by positive route
+ * identifiers. Destination, gateway, and subnet mask are kept in int
+ * columns, and the interface as a one-byte index into a table of next-hop
+ * interfaces, so a route takes 13 bytes and no objects. A RouteEntry is only
+ * created as a view the first time a caller asks for a route, and is kept in
+ * an entry column, so later lookups of the route allocate nothing and routes
+ * that are never looked up take no objects. Routes with several equal-cost 
+ * paths are rare, and are kept whole in the entry column when stored.
+ * <p>
+ * Entries are never changed, so a view cached by one reader is safe for
+ * others to use without locking; readers that race to cache the same view
+ * build equal entries.
+ * <p>
+ * The columns are split into chunks. A copy shares every chunk with the
+ * original and clones a chunk the first time it writes to it, so modifying
+ * a copy never disturbs reads on the original.
+ */
+class RouteStore
+{
+	/** Number of routes in a chunk */
+	private static final int CHUNK_SIZE = 1 << 10;
+
+	/** Most interfaces the next-hop table can hold */
+	private static final int MAX_INTERFACES = 0xff;
+
+	/** Destination IP address of each route */
+	private int[][] destinations;
+
+	/** Gateway IP address of each route */
+	private int[][] gateways;
+
+	/** Subnet mask of each route */
+	private int[][] masks;
+
+	/** One more than the next-hop table index of each route's interface;
+	 *  0 for identifiers without a route */
+	private byte[][] hops;
+
+	/** Entry of each route: routes with more than one path are stored 
+	 *  whole, and views of other routes are cached once built; null if no
+	 *  entry is stored or cached */
+	private RouteEntry[][] entries;
+
+	/** Whether this store may write to each chunk in place */
+	private boolean[] owned;
+
+	/** Interfaces routes may use; never modified once it is shared */
+	private Iface[] interfaces;
+
+	/** Identifiers that are free for reuse */
+	private int[] freeIds;
+
+	/** Number of free identifiers */
+	private int freeIdCount;
+
+	/** Number of identifiers ever allocated, including 0 */
+	private int idCount;
+
+	/**
+	 * Initialize an empty store.
+	 */
+	RouteStore()
+	{
+		this.destinations = new int[1][CHUNK_SIZE];
+		this.gateways = new int[1][CHUNK_SIZE];
+		this.masks = new int[1][CHUNK_SIZE];
+		this.hops = new byte[1][CHUNK_SIZE];
+		this.entries = new RouteEntry[1][CHUNK_SIZE];
+		this.owned = new boolean[] { true };
+		this.interfaces = new Iface[0];
+		this.freeIds = new int[16];
+		this.freeIdCount = 0;
+		this.idCount = 1;
+	}
+
+	/**
+	 * @return a copy that can be modified without affecting reads on this
+	 *         store; this store must not be modified afterwards
+	 */
+	RouteStore copy()
+	{
+		RouteStore copy = new RouteStore();
+		copy.destinations = this.destinations.clone();
+		copy.gateways = this.gateways.clone();
+		copy.masks = this.masks.clone();
+		copy.hops = this.hops.clone();
+		copy.entries = this.entries.clone();
+		copy.owned = new boolean[this.owned.length];
+		copy.interfaces = this.interfaces;
+		copy.freeIds = this.freeIds.clone();
+		copy.freeIdCount = this.freeIdCount;
+		copy.idCount = this.idCount;
+		return copy;
+	}
+
+	/**
+	 * @return number of routes stored
+	 */
+	int size()
+	{ return this.idCount - 1 - this.freeIdCount; }
+
+	/**
+	 * @return one more than the largest identifier that may be in use
+	 */
+	int getIdCount()
+	{ return this.idCount; }
+
+	/**
+	 * @return true if a route is stored for an identifier, otherwise false
+	 */
+	boolean contains(int id)
+	{
+		return (id > 0 && id < this.idCount
+				&& this.hops[id >>> 10][id & (CHUNK_SIZE - 1)] != 0);
+	}
+
+	/**
+	 * @return a view of the route for an identifier, built and cached the 
+	 *         first time it is asked for; null if there is none
+	 */
+	RouteEntry get(int id)
+	{
+		int chunk = id >>> 10;
+		int offset = id & (CHUNK_SIZE - 1);
+		int hop = this.hops[chunk][offset] & 0xff;
+		if (0 == hop)
+		{ return null; }
+		RouteEntry[] entries = this.entries[chunk];
+		RouteEntry entry = entries[offset];
+		if (null == entry)
+		{
+			entry = new RouteEntry(this.destinations[chunk][offset],
+					this.gateways[chunk][offset], this.masks[chunk][offset],
+					this.interfaces[hop - 1]);
+			entries[offset] = entry;
+		}
+		return entry;
+	}
+
+	/**
+	 * Add the gateway of each path of every stored route to a map, without
+	 * building views of the routes.
+	 * @param gateways maps a gateway IP address to the interface out which
+	 *        it is reached
+	 */
+	void putGateways(Map<Integer,Iface> gateways)
+	{
+		for (int id = 1; id < this.idCount; id++)
+		{
+			int chunk = id >>> 10;
+			int offset = id & (CHUNK_SIZE - 1);
+			int hop = this.hops[chunk][offset] & 0xff;
+			RouteEntry entry = this.entries[chunk][offset];
+			if (entry != null)
+			{ entry.putGateways(gateways); }
+			else if (hop != 0 && this.gateways[chunk][offset] != 0)
+			{ 
+				gateways.put(this.gateways[chunk][offset], 
+						this.interfaces[hop - 1]); 
+			}
+		}
+	}
+
+	/**
+	 * @return the destination IP address of the route for an identifier
+	 */
+	int getDestination(int id)
+	{ return this.destinations[id >>> 10][id & (CHUNK_SIZE - 1)]; }
+
+	/**
+	 * @return the subnet mask of the route for an identifier
+	 */
+	int getMask(int id)
+	{ return this.masks[id >>> 10][id & (CHUNK_SIZE - 1)]; }
+
+	/**
+	 * Store a route under a new identifier.
+	 * @param entry route to store
+	 * @return the route's identifier
+	 */
+	int add(RouteEntry entry)
+	{
+		int id = this.allocate();
+		this.set(id, entry);
+		return id;
+	}
+
+	/**
+	 * Replace the route stored for an identifier.
+	 * @param entry route to store
+	 */
+	void set(int id, RouteEntry entry)
+	{
+		int hop = this.hopIndex(entry.getInterface());
+		int chunk = this.writable(id >>> 10);
+		int offset = id & (CHUNK_SIZE - 1);
+		this.destinations[chunk][offset] = entry.getDestinationAddress();
+		this.gateways[chunk][offset] = entry.getGatewayAddress();
+		this.masks[chunk][offset] = entry.getMaskAddress();
+		this.hops[chunk][offset] = (byte)(hop + 1);
+		this.entries[chunk][offset] = (entry.getPathCount() > 1) ? entry 
+				: null;
+	}
+
+	/**
+	 * Remove the route stored for an identifier, and free the identifier.
+	 */
+	void remove(int id)
+	{
+		int chunk = this.writable(id >>> 10);
+		this.hops[chunk][id & (CHUNK_SIZE - 1)] = 0;
+		this.entries[chunk][id & (CHUNK_SIZE - 1)] = null;
+		if (this.freeIdCount == this.freeIds.length)
+		{ this.freeIds = Arrays.copyOf(this.freeIds, this.freeIdCount * 2); }
+		this.freeIds[this.freeIdCount++] = id;
+	}
+
+	/**
+	 * @return an identifier without a route
+	 */
+	int allocate()
+	{
+		if (this.freeIdCount > 0)
+		{ return this.freeIds[--this.freeIdCount]; }
+		int id = this.idCount++;
+		int chunk = id >>> 10;
+		if (chunk == this.hops.length)
+		{
+			int chunks = chunk * 2;
+			this.destinations = Arrays.copyOf(this.destinations, chunks);
+			this.gateways = Arrays.copyOf(this.gateways, chunks);
+			this.masks = Arrays.copyOf(this.masks, chunks);
+			this.hops = Arrays.copyOf(this.hops, chunks);
+			this.entries = Arrays.copyOf(this.entries, chunks);
+			this.owned = Arrays.copyOf(this.owned, chunks);
+		}
+		if (null == this.hops[chunk])
+		{
+			this.destinations[chunk] = new int[CHUNK_SIZE];
+			this.gateways[chunk] = new int[CHUNK_SIZE];
+			this.masks[chunk] = new int[CHUNK_SIZE];
+			this.hops[chunk] = new byte[CHUNK_SIZE];
+			this.entries[chunk] = new RouteEntry[CHUNK_SIZE];
+			this.owned[chunk] = true;
+		}
+		return id;
+	}
+
+	/**
+	 * @return the chunk, after cloning it if this store does not own it
+	 */
+	private int writable(int chunk)
+	{
+		if (!this.owned[chunk])
+		{
+			this.destinations[chunk] = this.destinations[chunk].clone();
+			this.gateways[chunk] = this.gateways[chunk].clone();
+			this.masks[chunk] = this.masks[chunk].clone();
+			this.hops[chunk] = this.hops[chunk].clone();
+			this.entries[chunk] = this.entries[chunk].clone();
+			this.owned[chunk] = true;
+		}
+		return chunk;
+	}
+
+	/**
+	 * @return the index of an interface in the next-hop table, adding the
+	 *         interface if it is not there yet
+	 */
+	private int hopIndex(Iface iface)
+	{
+		for (int i = 0; i < this.interfaces.length; i++)
+		{
+			if (this.interfaces[i] == iface)
+			{ return i; }
+		}
+		if (this.interfaces.length == MAX_INTERFACES)
+		{ throw new IllegalStateException("Too many route interfaces"); }
+
+		// Never grow a table that other stores may share
+		this.interfaces = Arrays.copyOf(this.interfaces,
+				this.interfaces.length + 1);
+		this.interfaces[this.interfaces.length - 1] = iface;
+		return this.interfaces.length - 1;
+	}
+}
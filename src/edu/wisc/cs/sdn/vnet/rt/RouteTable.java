@@ -1,32 +1,122 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import net.floodlightcontroller.packet.IPv4;
+import java.util.Map;
 
 import edu.wisc.cs.sdn.vnet.Iface;
 
 /**
- * Route table for a router.
+ * Route table for a router. Lookups take no lock: they run against an 
+ * immutable lookup engine that is published through a volatile field. 
+ * Changes are serialized by a lock; each one modifies a copy of the engine,
+ * which shares most of its structure with the published engine, and then 
+ * publishes the copy.
+ * <p>
+ * When the table belongs to a router, the router is told about every route
+ * installed, so it can resolve the route's gateways before packets need 
+ * them.
  * @author Aaron Gember-Jacobson
  */
 public class RouteTable 
 {
-	/** Entries in the route table */
-	private List<RouteEntry> entries; 
+	/** Name of the path-compressed trie lookup engine */
+	public static final String ENGINE_TRIE = "trie";
+	
+	/** Name of the DIR-24-8 lookup engine */
+	public static final String ENGINE_DIR248 = "dir248";
+	
+	/** Largest number of changed prefixes invalidated in the cache one by 
+	 *  one; the whole cache is cleared for larger changes */
+	private static final int MAX_INVALIDATIONS = 64;
+	
+	/** Lock that serializes changes to the route table */
+	private final Object updateLock;
+	
+	/** Published structure holding the entries, used for longest prefix 
+	 *  match; never modified once published */
+	private volatile LookupEngine engine;
+	
+	/** Cache of lookup results; null if lookups are not cached */
+	private volatile RouteCache cache;
+	
+	/** Router told about installed routes; null if there is none */
+	private final Router router;
 	
 	/**
 	 * Initialize an empty route table.
 	 */
 	public RouteTable()
-	{ this.entries = new LinkedList<RouteEntry>(); }
+	{ this(null); }
+	
+	/**
+	 * Initialize an empty route table for a router.
+	 * @param router router told about installed routes, so it can resolve 
+	 *        their gateways; null if there is none
+	 */
+	public RouteTable(Router router)
+	{
+		this.updateLock = new Object();
+		this.engine = new PrefixTrie();
+		this.cache = null;
+		this.router = router;
+	}
+	
+	/**
+	 * Enable or disable caching of lookup results.
+	 * @param capacity maximum number of destinations to cache; 0 to disable
+	 *        the cache
+	 */
+	public void setCacheSize(int capacity)
+	{ this.cache = (capacity > 0) ? new RouteCache(capacity) : null; }
+	
+	/**
+	 * @return cache of lookup results; null if lookups are not cached
+	 */
+	public RouteCache getCache()
+	{ return this.cache; }
+	
+	/**
+	 * @return number of entries in the route table
+	 */
+	public int size()
+	{ return this.engine.size(); }
+	
+	/**
+	 * @return the published lookup engine
+	 */
+	LookupEngine getEngine()
+	{ return this.engine; }
+	
+	/**
+	 * Select the structure used for longest prefix match. Any entries 
+	 * already in the table are added to the new structure.
+	 * @param name name of the lookup engine; either ENGINE_TRIE or 
+	 *        ENGINE_DIR248
+	 * @return true if the engine name is valid, otherwise false
+	 */
+	public boolean setEngine(String name)
+	{
+		LookupEngine newEngine;
+		if (name.equals(ENGINE_TRIE))
+		{ newEngine = new PrefixTrie(); }
+		else if (name.equals(ENGINE_DIR248))
+		{ newEngine = new Dir248Table(); }
+		else
+		{ return false; }
+		
+		synchronized(this.updateLock)
+		{
+			newEngine.insertAll(this.engine.getEntries());
+			this.engine = newEngine;
+			RouteCache cache = this.cache;
+			if (cache != null)
+			{ cache.clear(); }
+		}
+		return true;
+	}
 	
 	/**
 	 * Lookup the route entry that matches a given IP address.
@@ -35,15 +125,24 @@ public class RouteTable
 	 */
 	public RouteEntry lookup(int ip)
 	{
-		synchronized(this.entries)
-        {
-			/*****************************************************************/
-			/* TODO: Find the route entry with the longest prefix match      */
-			
-			return null;
-			
-			/*****************************************************************/
-        }
+		RouteCache cache = this.cache;
+		if (cache != null)
+		{ return cache.lookup(ip, this); }
+		return this.engine.lookup(ip);
+	}
+	
+	/**
+	 * Lookup the route entries that match a batch of IP addresses. All 
+	 * addresses are matched against the same version of the table, and the
+	 * results are the same as calling lookup for each address.
+	 * @param ips IP addresses
+	 * @param count number of addresses, from the start of the array, to look up
+	 * @param out array in which to store the matching route entries, with 
+	 *        null for addresses that have no match
+	 */
+	public void lookupBatch(int[] ips, int count, RouteEntry[] out)
+	{
+		this.engine.lookup(ips, count, out);
 	}
 	
 	/**
@@ -54,91 +153,174 @@ public class RouteTable
 	 */
 	public boolean load(String filename, Router router)
 	{
-		// Open the file
-		BufferedReader reader;
-		try 
-		{
-			FileReader fileReader = new FileReader(filename);
-			reader = new BufferedReader(fileReader);
-		}
-		catch (FileNotFoundException e) 
-		{
-			System.err.println(e.toString());
-			return false;
-		}
+		RouteFileParser parser = new RouteFileParser(router.getInterfaces());
+		List<RouteEntry> loaded = parser.parse(filename);
+		if (null == loaded)
+		{ return false; }
+		
+		// Add all entries to the route table as a single change
+		this.insertAll(loaded);
+		return true;
+	}
+	
+	/**
+	 * Bring the route table in line with a file that may have changed since
+	 * it was loaded. Only the entries that were added, removed, or changed 
+	 * in the file are applied, as a single change, so lookups see either 
+	 * the old table or the new one. The table is left unchanged if the file
+	 * is invalid.
+	 * @param filename name of the file containing the static route table
+	 * @param router the route table is associated with
+	 * @return true if route table was successfully reloaded, otherwise false
+	 */
+	public boolean reload(String filename, Router router)
+	{
+		RouteFileParser parser = new RouteFileParser(router.getInterfaces());
+		List<RouteEntry> loaded = parser.parse(filename);
+		if (null == loaded)
+		{ return false; }
 		
-		while (true)
+		// Index the entries in the file by prefix
+		Map<Long,RouteEntry> wanted = new HashMap<Long,RouteEntry>();
+		for (RouteEntry entry : loaded)
+		{ wanted.put(entry.getPrefixKey(), entry); }
+		
+		List<RouteEntry> changed = new ArrayList<RouteEntry>();
+		synchronized(this.updateLock)
 		{
-			// Read a route entry from the file
-			String line = null;
-			try 
-			{ line = reader.readLine(); }
-			catch (IOException e) 
+			List<RouteEntry> removed = new ArrayList<RouteEntry>();
+			int updated = 0;
+			for (RouteEntry entry : this.engine.getEntries())
 			{
-				System.err.println(e.toString());
-				try { reader.close(); } catch (IOException f) {};
-				return false;
+				RouteEntry other = wanted.remove(entry.getPrefixKey());
+				if (null == other)
+				{ removed.add(entry); }
+				else if (!other.hasSamePaths(entry))
+				{
+					changed.add(other);
+					updated++;
+				}
 			}
+			changed.addAll(wanted.values());
 			
-			// Stop if we have reached the end of the file
-			if (null == line)
-			{ break; }
-			
-			// Parse fields for route entry
-			String ipPattern = "(\\d+\\.\\d+\\.\\d+\\.\\d+)";
-			String ifacePattern = "([a-zA-Z0-9]+)";
-			Pattern pattern = Pattern.compile(String.format(
-                        "%s\\s+%s\\s+%s\\s+%s", 
-                        ipPattern, ipPattern, ipPattern, ifacePattern));
-			Matcher matcher = pattern.matcher(line);
-			if (!matcher.matches() || matcher.groupCount() != 4)
+			if (removed.size() > 0 || changed.size() > 0)
 			{
-				System.err.println("Invalid entry in routing table file");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-
-			int dstIp = IPv4.toIPv4Address(matcher.group(1));
-			if (0 == dstIp)
-			{
-				System.err.println("Error loading route table, cannot convert "
-						+ matcher.group(1) + " to valid IP");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
+				LookupEngine next = this.engine.copy();
+				for (RouteEntry entry : removed)
+				{ 
+					next.remove(entry.getDestinationAddress(), 
+							entry.getMaskAddress()); 
+				}
+				next.insertAll(changed);
+				this.engine = next;
+				
+				RouteCache cache = this.cache;
+				if (cache != null)
+				{
+					if (removed.size() + changed.size() > MAX_INVALIDATIONS)
+					{ cache.clear(); }
+					else
+					{
+						for (RouteEntry entry : removed)
+						{ 
+							cache.invalidate(entry.getDestinationAddress(), 
+									entry.getMaskAddress()); 
+						}
+						for (RouteEntry entry : changed)
+						{ 
+							cache.invalidate(entry.getDestinationAddress(), 
+									entry.getMaskAddress()); 
+						}
+					}
+				}
 			}
 			
-			int gwIp = IPv4.toIPv4Address(matcher.group(2));
-			
-			int maskIp = IPv4.toIPv4Address(matcher.group(3));
-			if (0 == maskIp)
-			{
-				System.err.println("Error loading route table, cannot convert "
-						+ matcher.group(3) + " to valid IP");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-			
-			String ifaceName = matcher.group(4).trim();
-			Iface iface = router.getInterface(ifaceName);
-			if (null == iface)
+			System.out.println(String.format(
+					"Reloaded route table: %d added, %d removed, %d updated",
+					changed.size() - updated, removed.size(), updated));
+		}
+		this.installed(changed);
+		return true;
+	}
+	
+	/**
+	 * Write a binary snapshot of the route table's lookup engine, which can 
+	 * be loaded far faster than the route table file it was built from.
+	 * @param filename name of the file to write
+	 * @param router the route table is associated with
+	 * @return true if the snapshot was written, otherwise false
+	 */
+	public boolean saveSnapshot(String filename, Router router)
+	{ return FibSnapshot.write(this.engine, router.getInterfaces(), filename); }
+	
+	/**
+	 * Replace the contents of the route table with a snapshot written by 
+	 * saveSnapshot. The snapshot must have been written for the lookup 
+	 * engine the table uses and for the router's current interfaces.
+	 * @param filename name of the file containing the snapshot
+	 * @param router the route table is associated with
+	 * @return true if the snapshot was successfully loaded, otherwise false
+	 */
+	public boolean loadSnapshot(String filename, Router router)
+	{
+		LookupEngine loaded = FibSnapshot.read(filename, 
+				router.getInterfaces());
+		if (null == loaded)
+		{ return false; }
+		
+		// Collect the gateways while the engine is still private; a DIR-24-8
+		// table is read without its prefix index, which listing its entries
+		// would build
+		Map<Integer,Iface> gateways = new HashMap<Integer,Iface>();
+		if (loaded instanceof Dir248Table)
+		{ ((Dir248Table)loaded).putGateways(gateways); }
+		else
+		{
+			for (RouteEntry entry : loaded.getEntries())
+			{ entry.putGateways(gateways); }
+		}
+		
+		synchronized(this.updateLock)
+		{
+			if (loaded.getClass() != this.engine.getClass())
 			{
-				System.err.println("Error loading route table, invalid interface "
-						+ matcher.group(4));
-				try { reader.close(); } catch (IOException f) {};
+				System.err.println("Error loading route snapshot " + filename
+						+ ", built for a different lookup engine");
 				return false;
 			}
-			
-			// Add an entry to the route table
-			this.insert(dstIp, gwIp, maskIp, iface);
+			this.engine = loaded;
+			RouteCache cache = this.cache;
+			if (cache != null)
+			{ cache.clear(); }
 		}
-	
-		// Close the file
-		try { reader.close(); } catch (IOException f) {};
+		if (this.router != null && gateways.size() > 0)
+		{ this.router.preResolve(gateways); }
 		return true;
 	}
 	
 	/**
-	 * Add an entry to the route table.
+	 * Add a batch of entries to the route table as a single change, so 
+	 * lookups see either none or all of them. An entry replaces any existing 
+	 * entry for the same destination and subnet mask.
+	 * @param added entries to add
+	 */
+	public void insertAll(List<RouteEntry> added)
+	{
+		synchronized(this.updateLock)
+		{
+			LookupEngine next = this.engine.copy();
+			next.insertAll(added);
+			this.engine = next;
+			RouteCache cache = this.cache;
+			if (cache != null)
+			{ cache.clear(); }
+		}
+		this.installed(added);
+	}
+	
+	/**
+	 * Add an entry with a single path to the route table, replacing any 
+	 * existing entry for the same destination and subnet mask.
 	 * @param dstIp destination IP
 	 * @param gwIp gateway IP
 	 * @param maskIp subnet mask
@@ -148,10 +330,45 @@ public class RouteTable
 	public void insert(int dstIp, int gwIp, int maskIp, Iface iface)
 	{
 		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface);
-        synchronized(this.entries)
+        synchronized(this.updateLock)
         { 
-            this.entries.add(entry);
+            LookupEngine next = this.engine.copy();
+            next.insert(dstIp, maskIp, entry);
+            this.publish(next, dstIp, maskIp);
         }
+        this.installed(Collections.singletonList(entry));
+	}
+	
+	/**
+	 * Add an equal-cost path to the entry for a destination and subnet mask,
+	 * adding the entry if there is none. Packets are spread across the 
+	 * paths by flow.
+	 * @param dstIp destination IP
+	 * @param gwIp gateway IP for the path
+	 * @param maskIp subnet mask
+	 * @param iface router interface out which to send packets on the path
+	 * @return true if the path was added or already existed, false if the 
+	 *         entry already has the most paths allowed
+	 */
+	public boolean addPath(int dstIp, int gwIp, int maskIp, Iface iface)
+	{
+		RouteEntry updated;
+		synchronized(this.updateLock)
+		{
+			RouteEntry entry = this.find(dstIp, maskIp);
+			updated = (null == entry)
+					? new RouteEntry(dstIp, gwIp, maskIp, iface)
+					: entry.addPath(gwIp, iface);
+			if (null == updated)
+			{ return false; }
+			if (updated == entry)
+			{ return true; }
+			LookupEngine next = this.engine.copy();
+			next.insert(dstIp, maskIp, updated);
+			this.publish(next, dstIp, maskIp);
+		}
+		this.installed(Collections.singletonList(updated));
+		return true;
 	}
 	
 	/**
@@ -162,18 +379,21 @@ public class RouteTable
 	 */
 	public boolean remove(int dstIp, int maskIp)
 	{ 
-        synchronized(this.entries)
+        synchronized(this.updateLock)
         {
             RouteEntry entry = this.find(dstIp, maskIp);
             if (null == entry)
             { return false; }
-            this.entries.remove(entry);
+            LookupEngine next = this.engine.copy();
+            next.remove(dstIp, maskIp);
+            this.publish(next, dstIp, maskIp);
         }
         return true;
     }
 	
 	/**
-	 * Update an entry in the route table.
+	 * Update an entry in the route table. The entry is left with a single 
+	 * path.
 	 * @param dstIP destination IP of the entry to update
      * @param maskIp subnet mask of the entry to update
 	 * @param gatewayAddress new gateway IP address for matching entry
@@ -183,17 +403,50 @@ public class RouteTable
 	public boolean update(int dstIp, int maskIp, int gwIp, 
             Iface iface)
 	{
-        synchronized(this.entries)
+        RouteEntry updated;
+        synchronized(this.updateLock)
         {
             RouteEntry entry = this.find(dstIp, maskIp);
             if (null == entry)
             { return false; }
-            entry.setGatewayAddress(gwIp);
-            entry.setInterface(iface);
+            
+            // Replace the entry, since lookups may still be using it
+            updated = new RouteEntry(entry.getDestinationAddress(),
+                    gwIp, entry.getMaskAddress(), iface);
+            LookupEngine next = this.engine.copy();
+            next.insert(dstIp, maskIp, updated);
+            this.publish(next, dstIp, maskIp);
         }
+        this.installed(Collections.singletonList(updated));
         return true;
 	}
 
+    /**
+     * Publish a new lookup engine and invalidate cached lookups for the 
+     * prefix that changed.
+     * @param next the new lookup engine
+     * @param dstIp destination IP of the prefix that changed
+     * @param maskIp subnet mask of the prefix that changed
+     */
+    private void publish(LookupEngine next, int dstIp, int maskIp)
+    {
+        this.engine = next;
+        RouteCache cache = this.cache;
+        if (cache != null)
+        { cache.invalidate(dstIp, maskIp); }
+    }
+
+    /**
+     * Tell the router about installed routes, so it can resolve their 
+     * gateways.
+     * @param entries routes that were installed
+     */
+    private void installed(List<RouteEntry> entries)
+    {
+        if (this.router != null && entries.size() > 0)
+        { this.router.preResolve(entries); }
+    }
+
     /**
 	 * Find an entry in the route table.
 	 * @param dstIP destination IP of the entry to find
@@ -202,23 +455,16 @@ public class RouteTable
 	 */
     private RouteEntry find(int dstIp, int maskIp)
     {
-        synchronized(this.entries)
-        {
-            for (RouteEntry entry : this.entries)
-            {
-                if ((entry.getDestinationAddress() == dstIp)
-                    && (entry.getMaskAddress() == maskIp)) 
-                { return entry; }
-            }
-        }
-        return null;
+        synchronized(this.updateLock)
+        { return this.engine.get(dstIp, maskIp); }
     }
 	
 	public String toString()
 	{
-        synchronized(this.entries)
+        synchronized(this.updateLock)
         { 
-            if (0 == this.entries.size())
+            List<RouteEntry> entries = this.engine.getEntries();
+            if (0 == entries.size())
             { return " WARNING: route table empty"; }
             
             String result = "Destination\tGateway\t\tMask\t\tIface\n";
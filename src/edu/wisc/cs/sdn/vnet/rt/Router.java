@@ -1,10 +1,24 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
 
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Checksum;
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.ICMP;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
 
 /**
  * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
@@ -17,6 +31,31 @@ public class Router extends Device
 	/** ARP cache for the router */
 	private ArpCache arpCache;
 	
+	/** Resolver for next hops missing from the ARP cache */
+	private ArpResolver arpResolver;
+	
+	/** Limits on ARP packets handled per source and per interface */
+	private ArpPolicer arpPolicer;
+	
+	/** Resolved next hops, with prebuilt Ethernet headers */
+	private AdjacencyTable adjacencies;
+	
+	/** Sender of ICMP errors and echo replies */
+	private IcmpGenerator icmpGenerator;
+	
+	/** The router's interfaces, in an array that is replaced when an 
+	 *  interface is added, so packet threads can scan it without a lock or
+	 *  an iterator */
+	private volatile Iface[] interfaceArray;
+	
+	/** Watcher that reloads the routing table when its file changes; null 
+	 *  if the file is not watched */
+	private RouteFileWatcher routeFileWatcher;
+	
+	/** File in which learned ARP entries are saved; null if they are not 
+	 *  saved */
+	private String arpStateFile;
+	
 	/**
 	 * Creates a router for a specific host.
 	 * @param host hostname for the router
@@ -24,8 +63,26 @@ public class Router extends Device
 	public Router(String host, DumpFile logfile)
 	{
 		super(host,logfile);
-		this.routeTable = new RouteTable();
+		this.routeTable = new RouteTable(this);
 		this.arpCache = new ArpCache();
+		this.arpResolver = new ArpResolver(this);
+		this.arpPolicer = new ArpPolicer();
+		this.adjacencies = new AdjacencyTable();
+		this.icmpGenerator = new IcmpGenerator(this);
+		this.interfaceArray = new Iface[0];
+		this.routeFileWatcher = null;
+		this.arpStateFile = null;
+	}
+	
+	/**
+	 * Add an interface to the router.
+	 * @param ifaceName the name of the interface
+	 */
+	public Iface addInterface(String ifaceName)
+	{
+		Iface iface = super.addInterface(ifaceName);
+		this.interfaceArray = this.interfaces.values().toArray(new Iface[0]);
+		return iface;
 	}
 	
 	/**
@@ -34,6 +91,18 @@ public class Router extends Device
 	public RouteTable getRouteTable()
 	{ return this.routeTable; }
 	
+	/**
+	 * @return ARP cache for the router
+	 */
+	public ArpCache getArpCache()
+	{ return this.arpCache; }
+	
+	/**
+	 * @return resolved next hops of the router
+	 */
+	public AdjacencyTable getAdjacencies()
+	{ return this.adjacencies; }
+	
 	/**
 	 * Load a new routing table from a file.
 	 * @param routeTableFile the name of the file containing the routing table
@@ -53,6 +122,59 @@ public class Router extends Device
 		System.out.println("-------------------------------------------------");
 	}
 	
+	/**
+	 * Load a new routing table from a binary snapshot, if the snapshot is at
+	 * least as new as the routing table file and matches the router's 
+	 * interfaces. Otherwise, load the routing table file and write a new 
+	 * snapshot for the next time the router starts.
+	 * @param routeTableFile the name of the file containing the routing 
+	 *        table; null if there is none
+	 * @param snapshotFile the name of the file containing the snapshot
+	 */
+	public void loadRouteTable(String routeTableFile, String snapshotFile)
+	{
+		File snapshot = new File(snapshotFile);
+		if (snapshot.exists() && (null == routeTableFile 
+				|| snapshot.lastModified() 
+						>= new File(routeTableFile).lastModified()))
+		{
+			if (this.routeTable.loadSnapshot(snapshotFile, this))
+			{
+				System.out.println(String.format(
+						"Loaded route table snapshot with %d entries",
+						this.routeTable.size()));
+				return;
+			}
+		}
+		
+		if (null == routeTableFile)
+		{
+			System.err.println("No route table file to rebuild snapshot "
+					+ snapshotFile);
+			return;
+		}
+		this.loadRouteTable(routeTableFile);
+		if (this.routeTable.saveSnapshot(snapshotFile, this))
+		{ System.out.println("Saved route table snapshot " + snapshotFile); }
+	}
+	
+	/**
+	 * Reload the routing table whenever its file changes.
+	 * @param routeTableFile the name of the file containing the routing table
+	 */
+	public void watchRouteTable(String routeTableFile)
+	{
+		try
+		{ this.routeFileWatcher = new RouteFileWatcher(routeTableFile, this); }
+		catch (IOException e)
+		{
+			System.err.println("Error watching routing table file "
+					+ routeTableFile + ": " + e.toString());
+			return;
+		}
+		System.out.println("Watching route table file " + routeTableFile);
+	}
+	
 	/**
 	 * Load a new ARP cache from a file.
 	 * @param arpCacheFile the name of the file containing the ARP cache
@@ -72,6 +194,151 @@ public class Router extends Device
 		System.out.println("----------------------------------");
 	}
 
+	/**
+	 * Load the learned ARP entries saved by a previous run, if any, and save
+	 * them to the same file periodically and when the router is destroyed.
+	 * @param arpStateFile the name of the file holding learned ARP entries
+	 */
+	public void loadArpState(String arpStateFile)
+	{
+		if (new File(arpStateFile).exists())
+		{
+			int added = ArpSnapshot.read(this.arpCache, arpStateFile);
+			if (added >= 0)
+			{
+				System.out.println(String.format(
+						"Loaded %d learned ARP entries", added));
+			}
+		}
+		this.arpStateFile = arpStateFile;
+		this.arpResolver.scheduleSave(arpStateFile);
+	}
+
+	/**
+	 * Stop resolving next hops, sending ICMP messages, and watching the 
+	 * routing table file, save learned ARP entries, print ARP, ICMP, and 
+	 * route cache statistics, and close the PCAP dump file.
+	 */
+	public void destroy()
+	{
+		this.arpResolver.shutdown();
+		this.icmpGenerator.shutdown();
+		if (this.arpStateFile != null 
+				&& ArpSnapshot.write(this.arpCache, this.arpStateFile))
+		{ System.out.println("Saved learned ARP entries " + this.arpStateFile); }
+		System.out.println(this.arpResolver.toString());
+		System.out.println(this.arpPolicer.toString());
+		System.out.println(this.icmpGenerator.toString());
+		if (this.routeFileWatcher != null)
+		{ this.routeFileWatcher.stop(); }
+		if (this.routeTable.getCache() != null)
+		{ System.out.println(this.routeTable.getCache().toString()); }
+		super.destroy();
+	}
+
+	/**
+	 * Police ARP frames per source MAC address and per interface, before 
+	 * they are parsed, so an ARP storm cannot starve forwarding.
+	 */
+	public boolean admitFrame(byte[] frame, int offset, int length, 
+			Iface inIface)
+	{
+		if (length < 14 || null == inIface 
+				|| frame[offset + 12] != (byte)(Ethernet.TYPE_ARP >> 8)
+				|| frame[offset + 13] != (byte)Ethernet.TYPE_ARP)
+		{ return true; }
+		
+		long sourceMac = 0;
+		for (int i = 6; i < 12; i++)
+		{ sourceMac = (sourceMac << 8) | (frame[offset + i] & 0xff); }
+		return this.arpPolicer.admit(sourceMac, inIface, System.nanoTime());
+	}
+	
+	/**
+	 * Forward ordinary IPv4 packets in place, from the bytes of the received
+	 * frame: check the header, decrement the TTL, patch the checksum, and 
+	 * replace the Ethernet header with the next hop's. Packets for the 
+	 * router, and packets that cannot be forwarded, are answered with ICMP 
+	 * messages quoted from the frame. Packets whose next hop is not 
+	 * resolved, or that are malformed, are left for handlePacket.
+	 */
+	public boolean handleFrame(byte[] frame, int offset, int length, 
+			Iface inIface)
+	{
+		int ip = offset + Adjacency.HEADER_LENGTH;
+		if (length < Adjacency.HEADER_LENGTH + 20
+				|| frame[offset + 12] != (byte)(Ethernet.TYPE_IPv4 >> 8)
+				|| frame[offset + 13] != (byte)Ethernet.TYPE_IPv4
+				|| (frame[ip] & 0xf0) != 0x40)
+		{ return false; }
+		
+		// Leave malformed headers and bad checksums to the slow path, which
+		// drops them
+		int headerLength = (frame[ip] & 0x0f) * 4;
+		int totalLength = ((frame[ip + 2] & 0xff) << 8) | (frame[ip + 3] & 0xff);
+		if (headerLength < 20 || totalLength < headerLength
+				|| totalLength > length - Adjacency.HEADER_LENGTH
+				|| !validChecksum(frame, ip, headerLength))
+		{ return false; }
+		
+		int destination = getInt(frame, ip + 16);
+		if (this.isLocalAddress(destination))
+		{
+			this.deliverLocal(frame, offset, length, inIface);
+			return true;
+		}
+		int ttl = frame[ip + 8] & 0xff;
+		if (ttl <= 1)
+		{
+			this.icmpGenerator.sendError(frame, offset, length, inIface, 
+					ICMP.TYPE_TIME_EXCEEDED, ICMP.CODE_TTL_EXCEEDED);
+			return true;
+		}
+		
+		// Find the route, and the path for the packet's flow
+		RouteEntry route = this.routeTable.lookup(destination);
+		if (null == route)
+		{
+			this.icmpGenerator.sendError(frame, offset, length, inIface, 
+					ICMP.TYPE_DESTINATION_UNREACHABLE, 
+					ICMP.CODE_NET_UNREACHABLE);
+			return true;
+		}
+		int path = route.selectPath(flowHash(frame, ip, headerLength, 
+				totalLength));
+		Iface outIface = route.getInterface(path);
+		if (outIface == inIface)
+		{ return false; }
+		
+		// Find the next hop's adjacency
+		int nextHop = route.getGatewayAddress(path);
+		if (0 == nextHop)
+		{ nextHop = destination; }
+		long nextHopMac = this.arpCache.lookupMac(nextHop);
+		if (ArpCache.FAILED == nextHopMac)
+		{
+			this.icmpGenerator.sendError(frame, offset, length, inIface, 
+					ICMP.TYPE_DESTINATION_UNREACHABLE, 
+					ICMP.CODE_HOST_UNREACHABLE);
+			return true;
+		}
+		if (ArpCache.NO_MAC == nextHopMac)
+		{ return false; }
+		Adjacency adjacency = this.adjacencies.get(outIface, nextHop, 
+				nextHopMac);
+		
+		// Decrement the TTL, which is the high byte of the header's fifth 
+		// 16-bit word, and patch the checksum to match
+		frame[ip + 8] = (byte)(ttl - 1);
+		Checksum.update16(frame, ip + 10, ttl << 8, (ttl - 1) << 8);
+		
+		// Send the packet without any Ethernet padding it arrived with
+		adjacency.writeHeader(frame, offset);
+		this.sendFrame(frame, offset, Adjacency.HEADER_LENGTH + totalLength, 
+				outIface);
+		return true;
+	}
+	
 	/**
 	 * Handle an Ethernet packet received on a specific interface.
 	 * @param etherPacket the Ethernet packet that was received
@@ -82,10 +349,383 @@ public class Router extends Device
 		System.out.println("*** -> Received packet: " +
                 etherPacket.toString().replace("\n", "\n\t"));
 		
-		/********************************************************************/
-		/* TODO: Handle packets                                             */
+		if (etherPacket.getEtherType() == Ethernet.TYPE_ARP)
+		{
+			this.handleArpPacket(etherPacket, inIface);
+			return;
+		}
+		
+		// Only IPv4 packets are forwarded
+		if (etherPacket.getEtherType() != Ethernet.TYPE_IPv4)
+		{ return; }
+		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
+		
+		// Drop packets with an invalid checksum
+		short checksum = ipPacket.getChecksum();
+		ipPacket.resetChecksum();
+		byte[] serialized = ipPacket.serialize();
+		ipPacket.deserialize(serialized, 0, serialized.length);
+		if (ipPacket.getChecksum() != checksum)
+		{ return; }
+		
+		// Answer packets destined for the router
+		if (this.isLocalAddress(ipPacket.getDestinationAddress()))
+		{
+			byte[] frame = etherPacket.serialize();
+			this.deliverLocal(frame, 0, frame.length, inIface);
+			return;
+		}
+		
+		// Reject packets whose TTL expires
+		if ((ipPacket.getTtl() & 0xff) <= 1)
+		{
+			this.sendIcmp(etherPacket, inIface, ICMP.TYPE_TIME_EXCEEDED, 
+					ICMP.CODE_TTL_EXCEEDED);
+			return;
+		}
+		
+		// Find the route, and the path for the packet's flow
+		RouteEntry route = this.routeTable.lookup(
+				ipPacket.getDestinationAddress());
+		if (null == route)
+		{
+			this.sendIcmp(etherPacket, inIface, 
+					ICMP.TYPE_DESTINATION_UNREACHABLE, 
+					ICMP.CODE_NET_UNREACHABLE);
+			return;
+		}
+		int path = route.selectPath(flowHash(ipPacket));
+		Iface outIface = route.getInterface(path);
+		if (outIface == inIface)
+		{ return; }
+		
+		// Find the MAC address of the next hop
+		int nextHop = route.getGatewayAddress(path);
+		if (0 == nextHop)
+		{ nextHop = ipPacket.getDestinationAddress(); }
+		long nextHopMac = this.arpCache.lookupMac(nextHop);
+		if (ArpCache.FAILED == nextHopMac)
+		{
+			// The next hop did not answer recently; reject at once rather 
+			// than send more ARP requests
+			this.sendIcmp(etherPacket, inIface, 
+					ICMP.TYPE_DESTINATION_UNREACHABLE, 
+					ICMP.CODE_HOST_UNREACHABLE);
+			return;
+		}
+		
+		// Decrement the TTL only once the packet will be forwarded, so 
+		// errors quote the header as it was received, as on the fast path;
+		// the checksum is updated with the TTL, so it need not be computed 
+		// again
+		ipPacket.setTtl((byte)(ipPacket.getTtl() - 1));
+		if (ArpCache.NO_MAC == nextHopMac)
+		{
+			this.arpResolver.enqueue(etherPacket, inIface, nextHop, outIface);
+			return;
+		}
+		
+		// Give the packet the next hop's prebuilt Ethernet header
+		Adjacency adjacency = this.adjacencies.get(outIface, nextHop, 
+				nextHopMac);
+		byte[] ipBytes = ipPacket.serialize();
+		byte[] frame = new byte[Adjacency.HEADER_LENGTH + ipBytes.length];
+		adjacency.writeHeader(frame, 0);
+		System.arraycopy(ipBytes, 0, frame, Adjacency.HEADER_LENGTH, 
+				ipBytes.length);
+		this.sendFrame(frame, 0, frame.length, outIface);
+	}
+	
+	/**
+	 * Learn the sender's mapping from every ARP packet, and answer ARP 
+	 * requests for the router's addresses.
+	 * @param etherPacket an Ethernet frame holding an ARP packet
+	 * @param inIface the interface on which the frame was received
+	 */
+	private void handleArpPacket(Ethernet etherPacket, Iface inIface)
+	{
+		ARP arpPacket = (ARP)etherPacket.getPayload();
+		
+		// Addresses are sized by the packet, so only read them if they are 
+		// IPv4 and Ethernet addresses
+		if (!isIpOverEthernet(arpPacket))
+		{ return; }
+		
+		// Requests, replies, and gratuitous announcements all carry the 
+		// sender's mapping, so most neighbors are known before the router 
+		// needs to forward to them
+		this.learnArpSender(arpPacket, inIface);
+		
+		int targetIp = ByteBuffer.wrap(
+				arpPacket.getTargetProtocolAddress()).getInt();
+		if (targetIp != inIface.getIpAddress())
+		{ return; }
+		
+		if (ARP.OP_REQUEST == arpPacket.getOpCode())
+		{
+			ARP reply = new ARP();
+			reply.setHardwareType(ARP.HW_TYPE_ETHERNET);
+			reply.setProtocolType(ARP.PROTO_TYPE_IP);
+			reply.setHardwareAddressLength(
+					(byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
+			reply.setProtocolAddressLength((byte)4);
+			reply.setOpCode(ARP.OP_REPLY);
+			reply.setSenderHardwareAddress(inIface.getMacAddress().toBytes());
+			reply.setSenderProtocolAddress(inIface.getIpAddress());
+			reply.setTargetHardwareAddress(
+					arpPacket.getSenderHardwareAddress());
+			reply.setTargetProtocolAddress(
+					arpPacket.getSenderProtocolAddress());
+			
+			Ethernet replyFrame = new Ethernet();
+			replyFrame.setEtherType(Ethernet.TYPE_ARP);
+			replyFrame.setSourceMACAddress(inIface.getMacAddress().toBytes());
+			replyFrame.setDestinationMACAddress(
+					etherPacket.getSourceMACAddress());
+			replyFrame.setPayload(reply);
+			this.sendPacket(replyFrame, inIface);
+		}
+	}
+	
+	/**
+	 * Add or refresh the ARP cache entry for the sender of an ARP packet, 
+	 * and send any packets waiting for the sender. Only unicast senders on 
+	 * the receiving interface's subnet are learned. Replies to the router 
+	 * are always learned; other changes to the cache are rate limited per
+	 * interface, so a flood of spoofed ARP packets cannot churn it, nor 
+	 * keep next hops the router is resolving from being learned.
+	 * @param arpPacket an ARP packet that maps IPv4 addresses to Ethernet 
+	 *        addresses
+	 * @param inIface the interface on which the packet was received
+	 */
+	private void learnArpSender(ARP arpPacket, Iface inIface)
+	{
+		int senderIp = ByteBuffer.wrap(
+				arpPacket.getSenderProtocolAddress()).getInt();
+		MACAddress senderMac = new MACAddress(
+				arpPacket.getSenderHardwareAddress());
+		int mask = inIface.getSubnetMask();
+		if (0 == senderIp || senderIp == inIface.getIpAddress()
+				|| (senderIp & mask) != (inIface.getIpAddress() & mask)
+				|| senderMac.isBroadcast() || senderMac.isMulticast()
+				|| 0 == senderMac.toLong())
+		{ return; }
 		
+		int targetIp = ByteBuffer.wrap(
+				arpPacket.getTargetProtocolAddress()).getInt();
+		boolean solicited = (ARP.OP_REPLY == arpPacket.getOpCode()
+					&& targetIp == inIface.getIpAddress())
+				|| this.arpResolver.isResolving(inIface, senderIp);
+		if (!solicited 
+				&& !this.arpPolicer.admitLearning(inIface, System.nanoTime()))
+		{ return; }
 		
-		/********************************************************************/
+		// The resolver adds the mapping once the packets waiting for the 
+		// sender are sent, so they are not overtaken
+		this.arpResolver.resolved(inIface, senderIp, senderMac);
+	}
+	
+	/**
+	 * @param arpPacket an ARP packet
+	 * @return true if the packet maps IPv4 addresses to Ethernet addresses,
+	 *         with addresses of those lengths, otherwise false
+	 */
+	private static boolean isIpOverEthernet(ARP arpPacket)
+	{
+		return (arpPacket.getProtocolType() == ARP.PROTO_TYPE_IP
+				&& arpPacket.getSenderProtocolAddress().length == 4
+				&& arpPacket.getTargetProtocolAddress().length == 4
+				&& arpPacket.getSenderHardwareAddress().length 
+						== Ethernet.DATALAYER_ADDRESS_LENGTH);
+	}
+	
+	/**
+	 * Answer an IPv4 packet sent to one of the router's addresses: reply to 
+	 * echo requests, and tell TCP and UDP senders the port is unreachable.
+	 * Other packets are dropped.
+	 * @param frame buffer holding the Ethernet frame of the packet
+	 * @param offset index of the frame's first byte in the buffer
+	 * @param length number of bytes in the frame
+	 * @param inIface the interface on which the frame was received
+	 */
+	private void deliverLocal(byte[] frame, int offset, int length, 
+			Iface inIface)
+	{
+		int ip = offset + Adjacency.HEADER_LENGTH;
+		int headerLength = (frame[ip] & 0x0f) * 4;
+		byte protocol = frame[ip + 9];
+		if (IPv4.PROTOCOL_ICMP == protocol)
+		{
+			if (length > Adjacency.HEADER_LENGTH + headerLength
+					&& ICMP.TYPE_ECHO_REQUEST == frame[ip + headerLength])
+			{ this.icmpGenerator.sendEchoReply(frame, offset, length, inIface); }
+		}
+		else if (IPv4.PROTOCOL_TCP == protocol 
+				|| IPv4.PROTOCOL_UDP == protocol)
+		{
+			this.icmpGenerator.sendError(frame, offset, length, inIface, 
+					ICMP.TYPE_DESTINATION_UNREACHABLE, 
+					ICMP.CODE_PORT_UNREACHABLE);
+		}
+	}
+	
+	/**
+	 * Send an ICMP error about an IPv4 packet back to the packet's sender,
+	 * through the neighbor the packet came from, subject to the ICMP 
+	 * generator's rules and rate limits. The packet is serialized to be 
+	 * quoted, so this is for packets that are already parsed, such as 
+	 * packets that waited for ARP; the forwarding path quotes the received
+	 * frame instead.
+	 * @param etherPacket the Ethernet frame holding the packet in error
+	 * @param inIface the interface on which the frame was received
+	 * @param type ICMP type
+	 * @param code ICMP code
+	 */
+	void sendIcmp(Ethernet etherPacket, Iface inIface, byte type, byte code)
+	{
+		byte[] frame = etherPacket.serialize();
+		this.icmpGenerator.sendError(frame, 0, frame.length, inIface, type, 
+				code);
+	}
+	
+	/**
+	 * @return true if an IP address belongs to one of the router's 
+	 *         interfaces, otherwise false
+	 */
+	private boolean isLocalAddress(int ip)
+	{
+		for (Iface iface : this.interfaceArray)
+		{
+			if (iface.getIpAddress() == ip)
+			{ return true; }
+		}
+		return false;
+	}
+	
+	/**
+	 * Start resolving the gateways of newly installed routes that are not in
+	 * the ARP cache, so the first packets sent along the routes do not wait 
+	 * for ARP.
+	 * @param entries routes that were installed
+	 */
+	void preResolve(List<RouteEntry> entries)
+	{
+		// Routes often share a few gateways, so resolve each one once
+		Map<Integer,Iface> gateways = new HashMap<Integer,Iface>();
+		for (RouteEntry entry : entries)
+		{ entry.putGateways(gateways); }
+		this.preResolve(gateways);
+	}
+	
+	/**
+	 * Start resolving gateways that are not in the ARP cache.
+	 * @param gateways maps a gateway IP address to the interface out which 
+	 *        it is reached
+	 */
+	void preResolve(Map<Integer,Iface> gateways)
+	{
+		for (Map.Entry<Integer,Iface> gateway : gateways.entrySet())
+		{
+			if (!this.arpCache.contains(gateway.getKey()))
+			{ this.arpResolver.resolve(gateway.getKey(), gateway.getValue()); }
+		}
+	}
+	
+	/**
+	 * Compute a hash of a packet's flow: its source and destination 
+	 * addresses, protocol, and TCP or UDP ports. Fragments are hashed without
+	 * ports, since only the first fragment carries them, so all fragments of
+	 * a packet take the same path.
+	 * @param ipPacket an IPv4 packet
+	 * @return hash of the packet's flow
+	 */
+	static int flowHash(IPv4 ipPacket)
+	{
+		int ports = 0;
+		boolean fragment = ((ipPacket.getFlags() & 0x1) != 0
+				|| ipPacket.getFragmentOffset() != 0);
+		if (!fragment && ipPacket.getPayload() instanceof TCP)
+		{
+			TCP tcp = (TCP)ipPacket.getPayload();
+			ports = (tcp.getSourcePort() << 16) 
+					| (tcp.getDestinationPort() & 0xffff);
+		}
+		else if (!fragment && ipPacket.getPayload() instanceof UDP)
+		{
+			UDP udp = (UDP)ipPacket.getPayload();
+			ports = (udp.getSourcePort() << 16) 
+					| (udp.getDestinationPort() & 0xffff);
+		}
+		return flowHash(ipPacket.getSourceAddress(), 
+				ipPacket.getDestinationAddress(), ipPacket.getProtocol(), 
+				ports);
+	}
+	
+	/**
+	 * Compute a hash of a packet's flow from the packet's bytes, the same as
+	 * the hash of the parsed packet.
+	 * @param packet buffer holding the packet
+	 * @param offset index of the IPv4 header in the buffer
+	 * @param headerLength bytes in the IPv4 header
+	 * @param totalLength bytes in the IPv4 packet
+	 * @return hash of the packet's flow
+	 */
+	static int flowHash(byte[] packet, int offset, int headerLength, 
+			int totalLength)
+	{
+		int ports = 0;
+		int protocol = packet[offset + 9] & 0xff;
+		boolean fragment = ((packet[offset + 6] & 0x3f) != 0
+				|| packet[offset + 7] != 0);
+		if (!fragment && totalLength >= headerLength + 4
+				&& (IPv4.PROTOCOL_TCP == protocol 
+						|| IPv4.PROTOCOL_UDP == protocol))
+		{ ports = getInt(packet, offset + headerLength); }
+		return flowHash(getInt(packet, offset + 12), 
+				getInt(packet, offset + 16), protocol, ports);
+	}
+	
+	/**
+	 * Compute a hash of a flow.
+	 * @param srcIp source IP address
+	 * @param dstIp destination IP address
+	 * @param protocol IP protocol number
+	 * @param ports source port in the upper 16 bits and destination port in 
+	 *        the lower 16 bits; 0 if the protocol has no ports
+	 * @return hash of the flow
+	 */
+	static int flowHash(int srcIp, int dstIp, int protocol, int ports)
+	{
+		int hash = srcIp * 0x9e3779b1;
+		hash = (hash ^ dstIp) * 0x85ebca6b;
+		hash = (hash ^ ports) * 0xc2b2ae35;
+		hash ^= (protocol & 0xff);
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		return hash;
+	}
+	
+	/**
+	 * Check the checksum of an IPv4 header.
+	 * @param packet buffer holding the header
+	 * @param offset index of the header in the buffer
+	 * @param headerLength bytes in the header
+	 * @return true if the checksum is valid, otherwise false
+	 */
+	static boolean validChecksum(byte[] packet, int offset, int headerLength)
+	{
+		int sum = 0;
+		for (int i = offset; i < offset + headerLength; i += 2)
+		{ sum += ((packet[i] & 0xff) << 8) | (packet[i + 1] & 0xff); }
+		sum = (sum & 0xffff) + (sum >>> 16);
+		sum = (sum & 0xffff) + (sum >>> 16);
+		return 0xffff == sum;
+	}
+	
+	private static int getInt(byte[] buf, int offset)
+	{
+		return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16)
+				| ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
 	}
 }
@@ -0,0 +1,60 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * A token bucket that limits how often an action happens. Tokens accrue at
+ * a fixed rate up to a burst size, and each action takes one token.
+ */
+public class TokenBucket
+{
+	/** Tokens added per nanosecond */
+	private final double ratePerNano;
+
+	/** Most tokens the bucket holds */
+	private final double burst;
+
+	/** Tokens in the bucket; guarded by this bucket */
+	private double tokens;
+
+	/** Time (from System.nanoTime) tokens were last added; guarded by this
+	 *  bucket */
+	private long lastFill;
+
+	/**
+	 * Create a full token bucket.
+	 * @param rate tokens added per second
+	 * @param burst most tokens the bucket holds
+	 */
+	public TokenBucket(double rate, int burst)
+	{
+		this.ratePerNano = rate / 1e9;
+		this.burst = burst;
+		this.tokens = burst;
+		this.lastFill = System.nanoTime();
+	}
+
+	/**
+	 * Take a token, if there is one.
+	 * @return true if a token was taken, false if the bucket is empty
+	 */
+	public boolean tryTake()
+	{ return this.tryTake(System.nanoTime()); }
+
+	/**
+	 * Take a token, if there is one.
+	 * @param now current time, from System.nanoTime
+	 * @return true if a token was taken, false if the bucket is empty
+	 */
+	public synchronized boolean tryTake(long now)
+	{
+		if (now > this.lastFill)
+		{
+			this.tokens = Math.min(this.burst,
+					this.tokens + (now - this.lastFill) * this.ratePerNano);
+			this.lastFill = now;
+		}
+		if (this.tokens < 1)
+		{ return false; }
+		this.tokens -= 1;
+		return true;
+	}
+}
@@ -13,17 +13,34 @@ public class CommandPacket extends Command
 	{ super(Command.VNS_PACKET); }
 	
 	protected CommandPacket deserialize(ByteBuffer buf)
+	{
+		this.deserializeHeader(buf);
+		this.deserializeFrame(buf);
+		return this;
+	}
+	
+	/**
+	 * Read the command and interface name, leaving the buffer positioned at
+	 * the start of the Ethernet frame.
+	 */
+	protected CommandPacket deserializeHeader(ByteBuffer buf)
 	{
 		super.deserialize(buf);
 				
 		byte[] tmpBytes = new byte[16];
 		buf.get(tmpBytes);
 		this.mInterfaceName = new String(tmpBytes).trim();
-		
+		return this;
+	}
+	
+	/**
+	 * Parse the Ethernet frame that follows the header.
+	 */
+	protected CommandPacket deserializeFrame(ByteBuffer buf)
+	{
         this.etherPacket = new Ethernet();
 		this.etherPacket.deserialize(buf.array(), buf.position(),
 				buf.capacity() - buf.position());
-		
 		return this;
 	}
 	
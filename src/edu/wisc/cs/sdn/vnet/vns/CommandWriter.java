@@ -0,0 +1,203 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes packet commands to the server from a single thread, so the threads
+ * that send packets never wait on the socket or on each other. Commands are
+ * assembled in a fixed pool of reused buffers; a sender waits for a free
+ * buffer when the writer falls behind. Commands queued together are written
+ * with a single flush.
+ * <p>
+ * Once the writer is stopped it accepts no more commands, and a sender it
+ * turns away returns only after the commands already queued are written, so
+ * the sender can write to the server itself without interleaving.
+ */
+class CommandWriter
+{
+	/** Most commands waiting to be written */
+	static final int QUEUE_SIZE = 1024;
+
+	/** Initial size of each command buffer */
+	private static final int BUFFER_SIZE = 2048;
+
+	/** Milliseconds a sender waits for a free buffer before checking
+	 *  whether the writer stopped */
+	private static final long FREE_WAIT = 100;
+
+	/** A command waiting to be written */
+	private static class Buffer
+	{
+		/** Bytes of the command */
+		byte[] data;
+
+		/** Number of bytes in the command */
+		int length;
+
+		Buffer(int size)
+		{ this.data = new byte[size]; }
+	}
+
+	/** Marker queued to stop the writer */
+	private static final Buffer STOP = new Buffer(0);
+
+	/** Stream to the server */
+	private final OutputStream out;
+
+	/** Commands waiting to be written, oldest first */
+	private final BlockingQueue<Buffer> pending;
+
+	/** Buffers not holding a command */
+	private final BlockingQueue<Buffer> free;
+
+	/** Thread that writes commands */
+	private final Thread thread;
+
+	/** True once the writer has been asked to stop; set while holding this
+	 *  writer, so no command is queued after the stop marker */
+	private volatile boolean stopped;
+
+	/**
+	 * Create a writer, and start its thread.
+	 * @param out stream to the server
+	 */
+	CommandWriter(OutputStream out)
+	{
+		this.out = new BufferedOutputStream(out, 64 * 1024);
+		this.pending = new ArrayBlockingQueue<Buffer>(QUEUE_SIZE + 1);
+		this.free = new ArrayBlockingQueue<Buffer>(QUEUE_SIZE);
+		for (int i = 0; i < QUEUE_SIZE; i++)
+		{ this.free.add(new Buffer(BUFFER_SIZE)); }
+		this.stopped = false;
+		this.thread = new Thread(new Runnable() {
+					public void run()
+					{ CommandWriter.this.run(); }
+				}, "vns-writer");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Queue a packet command for a frame.
+	 * @param frame buffer holding the frame; it is copied before this
+	 *        returns
+	 * @param offset index of the frame's first byte in the buffer
+	 * @param length number of bytes in the frame
+	 * @param ifaceName name of the interface out which to send the frame
+	 * @return true if the command was queued; false if the writer is 
+	 *         stopped, once the commands it already queued are written
+	 */
+	boolean writePacket(byte[] frame, int offset, int length,
+			String ifaceName)
+	{
+		// Wait for a free buffer, giving up if the writer stops meanwhile;
+		// an interrupt must not let the sender write alongside the writer
+		Buffer buffer = null;
+		boolean interrupted = false;
+		while (null == buffer && !this.stopped)
+		{
+			try
+			{ buffer = this.free.poll(FREE_WAIT, TimeUnit.MILLISECONDS); }
+			catch (InterruptedException e)
+			{ interrupted = true; }
+		}
+		if (interrupted)
+		{ Thread.currentThread().interrupt(); }
+		if (null == buffer)
+		{
+			this.awaitStop();
+			return false;
+		}
+
+		int size = VNSComm.FRAME_HEADER_SIZE + length;
+		if (buffer.data.length < size)
+		{ buffer.data = new byte[size]; }
+		buffer.length = VNSComm.putPacketCommand(buffer.data, frame, offset,
+				length, ifaceName);
+		synchronized (this)
+		{
+			if (!this.stopped)
+			{
+				this.pending.add(buffer);
+				return true;
+			}
+		}
+		this.free.add(buffer);
+		this.awaitStop();
+		return false;
+	}
+
+	/**
+	 * Write queued commands until the writer is stopped.
+	 */
+	private void run()
+	{
+		while (true)
+		{
+			Buffer buffer;
+			try
+			{ buffer = this.pending.take(); }
+			catch (InterruptedException e)
+			{ continue; }
+
+			try
+			{
+				if (STOP == buffer)
+				{
+					this.out.flush();
+					return;
+				}
+				this.out.write(buffer.data, 0, buffer.length);
+				if (this.pending.isEmpty())
+				{ this.out.flush(); }
+			}
+			catch (IOException e)
+			{
+				System.err.println("Error writing packet");
+				if (STOP == buffer)
+				{ return; }
+			}
+			this.free.add(buffer);
+		}
+	}
+
+	/**
+	 * Write the commands already queued, then stop the writer's thread.
+	 * Commands queued later are turned away.
+	 */
+	void stop()
+	{
+		synchronized (this)
+		{
+			if (!this.stopped)
+			{
+				this.stopped = true;
+				this.pending.add(STOP);
+			}
+		}
+		this.awaitStop();
+	}
+
+	/**
+	 * Wait for the writer's thread to write the commands already queued and
+	 * exit.
+	 */
+	private void awaitStop()
+	{
+		boolean interrupted = false;
+		while (this.thread.isAlive())
+		{
+			try
+			{ this.thread.join(); }
+			catch (InterruptedException e)
+			{ interrupted = true; }
+		}
+		if (interrupted)
+		{ Thread.currentThread().interrupt(); }
+	}
+}
@@ -0,0 +1,213 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Threads that handle received frames for the thread reading from the
+ * server. Each frame goes to a worker chosen by a hash of its flow, so the
+ * frames of a flow are handled in the order they were received, while
+ * different flows are handled in parallel. A frame whose worker has a full
+ * queue is dropped, rather than stalling the reader and every other flow.
+ */
+class FrameWorkers
+{
+	/** Most frames waiting for each worker */
+	static final int QUEUE_SIZE = 1024;
+
+	/** A frame waiting to be handled */
+	private static class Received
+	{
+		/** Buffer holding the frame; owned by the worker */
+		final byte[] frame;
+
+		/** Index of the frame's first byte in the buffer */
+		final int offset;
+
+		/** Number of bytes in the frame */
+		final int length;
+
+		/** Interface on which the frame was received; null if unknown */
+		final Iface inIface;
+
+		Received(byte[] frame, int offset, int length, Iface inIface)
+		{
+			this.frame = frame;
+			this.offset = offset;
+			this.length = length;
+			this.inIface = inIface;
+		}
+	}
+
+	/** Marker queued to stop a worker */
+	private static final Received STOP = new Received(null, 0, 0, null);
+
+	/** Connection whose frames the workers handle */
+	private final VNSComm vnsComm;
+
+	/** Frames waiting for each worker */
+	private final BlockingQueue<Received>[] queues;
+
+	/** Worker threads */
+	private final Thread[] threads;
+
+	/** Frames dropped because their worker's queue was full */
+	private final LongAdder drops;
+
+	/**
+	 * Create workers, and start their threads.
+	 * @param vnsComm connection whose frames the workers handle
+	 * @param count number of workers
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	FrameWorkers(VNSComm vnsComm, int count)
+	{
+		this.vnsComm = vnsComm;
+		this.queues = new BlockingQueue[count];
+		this.threads = new Thread[count];
+		this.drops = new LongAdder();
+		for (int i = 0; i < count; i++)
+		{
+			final BlockingQueue<Received> queue =
+					new ArrayBlockingQueue<Received>(QUEUE_SIZE);
+			this.queues[i] = queue;
+			this.threads[i] = new Thread(new Runnable() {
+						public void run()
+						{ FrameWorkers.this.run(queue); }
+					}, "vns-worker-" + i);
+			this.threads[i].setDaemon(true);
+			this.threads[i].start();
+		}
+	}
+
+	/**
+	 * Queue a received frame for the worker handling its flow.
+	 * @param frame buffer holding the frame; must not be changed or reused
+	 *        by the caller
+	 * @param offset index of the frame's first byte in the buffer
+	 * @param length number of bytes in the frame
+	 * @param inIface interface on which the frame was received; null if
+	 *        unknown
+	 * @return true if the frame was queued, false if it was dropped
+	 */
+	boolean dispatch(byte[] frame, int offset, int length, Iface inIface)
+	{
+		// Scale the hash to a worker without a division
+		long hash = flowHash(frame, offset, length) & 0xffffffffL;
+		int worker = (int)((hash * this.queues.length) >>> 32);
+		if (this.queues[worker].offer(
+				new Received(frame, offset, length, inIface)))
+		{ return true; }
+		this.drops.increment();
+		return false;
+	}
+
+	/**
+	 * Hash the flow of a frame. For IPv4 the flow is the source and
+	 * destination addresses and protocol, plus the ports for TCP and UDP
+	 * packets that are not fragments; fragments after the first carry no
+	 * ports, so all fragments of a packet hash the same. Other frames are
+	 * hashed by source MAC address.
+	 * @param frame buffer holding the frame
+	 * @param offset index of the frame's first byte in the buffer
+	 * @param length number of bytes in the frame
+	 * @return hash of the frame's flow
+	 */
+	static int flowHash(byte[] frame, int offset, int length)
+	{
+		if (length < 14)
+		{ return 0; }
+		int hash;
+		int etherType = getShort(frame, offset + 12);
+		if (0x0800 == etherType && length >= 14 + 20)
+		{
+			int ip = offset + 14;
+			int headerLength = (frame[ip] & 0x0f) * 4;
+			int protocol = frame[ip + 9] & 0xff;
+			hash = mix(getInt(frame, ip + 12), getInt(frame, ip + 16));
+			hash = mix(hash, protocol);
+			boolean fragment = (getShort(frame, ip + 6) & 0x3fff) != 0;
+			if ((6 == protocol || 17 == protocol) && !fragment
+					&& headerLength >= 20
+					&& length >= 14 + headerLength + 4)
+			{ hash = mix(hash, getInt(frame, ip + headerLength)); }
+		}
+		else
+		{
+			hash = mix(getInt(frame, offset + 6),
+					getShort(frame, offset + 10));
+		}
+		return hash;
+	}
+
+	/**
+	 * Handle queued frames until the worker is stopped.
+	 */
+	private void run(BlockingQueue<Received> queue)
+	{
+		while (true)
+		{
+			Received received;
+			try
+			{ received = queue.take(); }
+			catch (InterruptedException e)
+			{ continue; }
+			if (STOP == received)
+			{ return; }
+
+			// Keep the worker alive if the device fails on one frame
+			try
+			{
+				this.vnsComm.receiveFrame(received.frame, received.offset,
+						received.length, received.inIface);
+			}
+			catch (RuntimeException e)
+			{ e.printStackTrace(); }
+		}
+	}
+
+	/**
+	 * Handle the frames already queued, then stop the workers' threads.
+	 */
+	void stop()
+	{
+		for (BlockingQueue<Received> queue : this.queues)
+		{
+			try
+			{ queue.put(STOP); }
+			catch (InterruptedException e)
+			{ Thread.currentThread().interrupt(); }
+		}
+		for (Thread thread : this.threads)
+		{
+			try
+			{ thread.join(); }
+			catch (InterruptedException e)
+			{ Thread.currentThread().interrupt(); }
+		}
+	}
+
+	public String toString()
+	{
+		return String.format("workers=%d drops=%d", this.threads.length,
+				this.drops.sum());
+	}
+
+	private static int mix(int hash, int value)
+	{
+		hash = (hash ^ value) * 0x9e3779b9;
+		return hash ^ (hash >>> 16);
+	}
+
+	private static int getShort(byte[] frame, int i)
+	{ return ((frame[i] & 0xff) << 8) | (frame[i + 1] & 0xff); }
+
+	private static int getInt(byte[] frame, int i)
+	{
+		return ((frame[i] & 0xff) << 24) | ((frame[i + 1] & 0xff) << 16)
+				| ((frame[i + 2] & 0xff) << 8) | (frame[i + 3] & 0xff);
+	}
+}
@@ -16,13 +16,32 @@ import edu.wisc.cs.sdn.vnet.Iface;
 
 public class VNSComm 
 {
+	/** Bytes before the frame in a packet command: length, type, and 
+	 *  interface name */
+	static final int FRAME_HEADER_SIZE = 4 + 4 + 16;
+	
 	private Socket socket;
 	private Device device;
 	
+	/** Buffer in which raw frames are assembled for sending; guarded by 
+	 *  this object */
+	private byte[] sendBuf;
+	
+	/** Threads handling received frames; null if frames are handled by the
+	 *  reading thread */
+	private FrameWorkers workers;
+	
+	/** Thread writing sent frames; null if frames are written by the 
+	 *  sending thread */
+	private volatile CommandWriter writer;
+	
 	public VNSComm(Device device)
 	{ 
 		this.device = device;
 		this.device.setVNSComm(this);
+		this.sendBuf = null;
+		this.workers = null;
+		this.writer = null;
 	}
 	
 	public boolean connectToServer(short port, String server)
@@ -103,6 +122,46 @@ public class VNSComm
 		return true;
 	}
 	
+	/**
+	 * Handle received frames on worker threads, and send frames from a 
+	 * single writer thread, instead of handling each frame on the thread
+	 * reading from the server. Frames of the same flow are handled in order
+	 * by the same worker. The device must be safe to call from several 
+	 * threads at once.
+	 * @param count number of worker threads
+	 */
+	public void startWorkers(int count)
+	{
+		if (this.workers != null || count <= 0)
+		{ return; }
+		try
+		{ this.writer = new CommandWriter(this.socket.getOutputStream()); }
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return;
+		}
+		this.workers = new FrameWorkers(this, count);
+	}
+	
+	/**
+	 * Finish handling the frames already received, and stop the worker and
+	 * writer threads. Frames are handled by the calling thread afterward.
+	 */
+	public void stopWorkers()
+	{
+		if (null == this.workers)
+		{ return; }
+		this.workers.stop();
+		System.out.println(this.workers.toString());
+		this.workers = null;
+		
+		// Once the writer has written what it queued, it turns senders away,
+		// and they write to the server themselves
+		this.writer.stop();
+		this.writer = null;
+	}
+	
 	public boolean readFromServer()
 	{ return this.readFromServerExpect(0); }
 	
@@ -191,15 +250,17 @@ public class VNSComm
 		{
 		case Command.VNS_PACKET:
 			CommandPacket cmdPkt = new CommandPacket();
-			cmdPkt.deserialize(buf);
-			
-			// Log packet
-            if (this.device.getLogFile() != null)
-            { this.device.getLogFile().dump(cmdPkt.etherPacket); }
+			cmdPkt.deserializeHeader(buf);
+			Iface inIface = this.device.getInterface(cmdPkt.mInterfaceName);
 			
-			// Pass to device, student's code should take over here
-			this.device.handlePacket(cmdPkt.etherPacket, 
-					this.device.getInterface(cmdPkt.mInterfaceName));
+			// The buffer is allocated for each command, so a worker can 
+			// own it
+			int offset = buf.position();
+			int length = buf.capacity() - offset;
+			if (this.workers != null)
+			{ this.workers.dispatch(buf.array(), offset, length, inIface); }
+			else
+			{ this.receiveFrame(buf.array(), offset, length, inIface); }
 			break;
 			
 		case Command.VNS_CLOSE:
@@ -223,6 +284,35 @@ public class VNSComm
 		return true;
 	}
 	
+	/**
+	 * Pass a received frame to the device.
+	 * @param frame buffer holding the frame
+	 * @param offset index of the frame's first byte in the buffer
+	 * @param length number of bytes in the frame
+	 * @param inIface interface on which the frame was received; null if 
+	 *        unknown
+	 */
+	void receiveFrame(byte[] frame, int offset, int length, Iface inIface)
+	{
+		// Let the device drop the frame before it is parsed
+		if (!this.device.admitFrame(frame, offset, length, inIface))
+		{ return; }
+		
+		// Log packet, before the device can change it in place
+        if (this.device.getLogFile() != null)
+        { this.device.getLogFile().dump(frame, offset, length); }
+		
+		// Let the device handle the frame without parsing it
+		if (inIface != null && this.device.handleFrame(frame, offset, length,
+				inIface))
+		{ return; }
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.deserialize(frame, offset, length);
+		
+		// Pass to device, student's code should take over here
+		this.device.handlePacket(etherPacket, inIface);
+	}
+	
 	public boolean etherAddrsMatchInterface(Ethernet etherPacket, 
 			String ifaceName)
 	{
@@ -241,36 +331,84 @@ public class VNSComm
 		return true;
 	}
 	
-	// sr_send_packet
-	public boolean sendPacket(Ethernet etherPacket, String ifaceName)
+	/**
+	 * Assemble a packet command for a frame.
+	 * @param buf buffer in which to assemble the command; must hold at least
+	 *        FRAME_HEADER_SIZE + length bytes
+	 * @param frame buffer holding the frame
+	 * @param offset index of the frame's first byte in the buffer
+	 * @param length number of bytes in the frame
+	 * @param ifaceName name of the interface out which to send the frame
+	 * @return number of bytes in the command
+	 */
+	static int putPacketCommand(byte[] buf, byte[] frame, int offset, 
+			int length, String ifaceName)
+	{
+		int size = FRAME_HEADER_SIZE + length;
+		ByteBuffer bb = ByteBuffer.wrap(buf);
+		bb.putInt(size);
+		bb.putInt(Command.VNS_PACKET);
+		int nameLength = Math.min(ifaceName.length(), 16);
+		for (int i = 0; i < 16; i++)
+		{ bb.put((i < nameLength) ? (byte)ifaceName.charAt(i) : 0); }
+		bb.put(frame, offset, length);
+		return size;
+	}
+	
+	/**
+	 * Send a raw Ethernet frame out an interface. The frame is copied into
+	 * a buffer reused across sends, so sending allocates nothing once the 
+	 * buffer is large enough. When workers are running, the frame is 
+	 * queued for the writer thread instead of written by the caller.
+	 * @param frame buffer holding the frame
+	 * @param offset index of the frame's first byte in the buffer
+	 * @param length number of bytes in the frame
+	 * @param ifaceName name of the interface out which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendFrame(byte[] frame, int offset, int length, 
+			String ifaceName)
 	{
-		CommandPacket cmdPacket = new CommandPacket();
-		cmdPacket.mInterfaceName = ifaceName;
-		cmdPacket.etherPacket = etherPacket;
+		// Log packet
+        if (this.device.getLogFile() != null)
+        { this.device.getLogFile().dump(frame, offset, length); }
 		
-		byte[] buf = cmdPacket.serialize();
+		CommandWriter writer = this.writer;
+		if (writer != null && writer.writePacket(frame, offset, length, 
+				ifaceName))
+		{ return true; }
 		
+		synchronized (this)
+		{
+			int size = FRAME_HEADER_SIZE + length;
+			if (null == this.sendBuf || this.sendBuf.length < size)
+			{ this.sendBuf = new byte[Math.max(size, 2048)]; }
+			putPacketCommand(this.sendBuf, frame, offset, length, ifaceName);
+			try
+			{
+				OutputStream outStream = socket.getOutputStream();
+				outStream.write(this.sendBuf, 0, size);
+				outStream.flush();
+			}
+			catch(IOException e)
+			{
+				System.err.println("Error writing packet");
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	// sr_send_packet; packets may be sent from several threads
+	public boolean sendPacket(Ethernet etherPacket, String ifaceName)
+	{
 		/*if (!etherAddrsMatchInterface(etherPacket, ifaceName))
 		{
 			System.err.println("*** Error: problem with ethernet header, check log");
 			return false;
 		}*/
 		
-		// Log packet
-        if (this.device.getLogFile() != null)
-        { this.device.getLogFile().dump(etherPacket); }
-		
-	    try
-		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
-		}
-		catch(IOException e)
-		{
-			System.err.println("Error writing packet");
-			return false;
-		}
-		return true;
+		byte[] frame = etherPacket.serialize();
+		return this.sendFrame(frame, 0, frame.length, ifaceName);
 	}
 }
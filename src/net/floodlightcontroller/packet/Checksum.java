@@ -0,0 +1,92 @@
+package net.floodlightcontroller.packet;
+
+/**
+ * Incremental updates of the Internet checksum used by IPv4, ICMP, TCP, and
+ * UDP, following RFC 1624. When a field covered by a checksum changes, the
+ * checksum is patched from the field's old and new values, without summing
+ * the rest of the header or packet again.
+ * <p>
+ * Updates use eqn. 3 of RFC 1624, HC' = ~(~HC + ~m + m'), which gives the
+ * same checksum as computing it again, including when a field changes from
+ * or to zero.
+ */
+public class Checksum {
+    private Checksum() {
+    }
+
+    /**
+     * Update a checksum for a change to a 16-bit word it covers.
+     * @param checksum the current checksum
+     * @param oldWord the word's old value, in its lower 16 bits
+     * @param newWord the word's new value, in its lower 16 bits
+     * @return the updated checksum
+     */
+    public static short update16(short checksum, int oldWord, int newWord) {
+        int sum = (~checksum & 0xffff) + (~oldWord & 0xffff)
+                + (newWord & 0xffff);
+        return (short) ~fold(sum);
+    }
+
+    /**
+     * Update a checksum for a change to a 32-bit value it covers, such as an
+     * IPv4 address. The value must start on a 16-bit boundary.
+     * @param checksum the current checksum
+     * @param oldValue the value's old value
+     * @param newValue the value's new value
+     * @return the updated checksum
+     */
+    public static short update32(short checksum, int oldValue, int newValue) {
+        int sum = (~checksum & 0xffff)
+                + (~oldValue & 0xffff) + (~oldValue >>> 16)
+                + (newValue & 0xffff) + (newValue >>> 16);
+        return (short) ~fold(sum);
+    }
+
+    /**
+     * Update a checksum stored in a buffer for a change to a 16-bit word it
+     * covers.
+     * @param data buffer holding the checksum
+     * @param checksumOffset index of the checksum's first byte in the buffer
+     * @param oldWord the word's old value, in its lower 16 bits
+     * @param newWord the word's new value, in its lower 16 bits
+     */
+    public static void update16(byte[] data, int checksumOffset, int oldWord,
+            int newWord) {
+        put(data, checksumOffset,
+                update16(get(data, checksumOffset), oldWord, newWord));
+    }
+
+    /**
+     * Update a checksum stored in a buffer for a change to a 32-bit value it
+     * covers.
+     * @param data buffer holding the checksum
+     * @param checksumOffset index of the checksum's first byte in the buffer
+     * @param oldValue the value's old value
+     * @param newValue the value's new value
+     */
+    public static void update32(byte[] data, int checksumOffset, int oldValue,
+            int newValue) {
+        put(data, checksumOffset,
+                update32(get(data, checksumOffset), oldValue, newValue));
+    }
+
+    /**
+     * Fold the carries of a sum of 16-bit words back into its lower 16 bits.
+     * Folding twice is needed, since the first fold can itself carry.
+     * @param sum a sum of 16-bit words
+     * @return the ones' complement sum, in the lower 16 bits
+     */
+    static int fold(int sum) {
+        sum = (sum & 0xffff) + (sum >>> 16);
+        return (sum & 0xffff) + (sum >>> 16);
+    }
+
+    private static short get(byte[] data, int offset) {
+        return (short) (((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff));
+    }
+
+    private static void put(byte[] data, int offset, short value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+}
@@ -393,10 +393,15 @@ public class Ethernet extends BasePacket {
 
         if (pkt instanceof ARP) {
             ARP p = (ARP) pkt;
-            sb.append("\nnw_src: ");
-            sb.append(IPv4.fromIPv4Address(IPv4.toIPv4Address(p.getSenderProtocolAddress())));
-            sb.append("\nnw_dst: ");
-            sb.append(IPv4.fromIPv4Address(IPv4.toIPv4Address(p.getTargetProtocolAddress())));
+            // Protocol addresses are sized by the packet, so only format
+            // them as IPv4 addresses when they have that length
+            if (p.getSenderProtocolAddress().length == 4
+                    && p.getTargetProtocolAddress().length == 4) {
+                sb.append("\nnw_src: ");
+                sb.append(IPv4.fromIPv4Address(IPv4.toIPv4Address(p.getSenderProtocolAddress())));
+                sb.append("\nnw_dst: ");
+                sb.append(IPv4.fromIPv4Address(IPv4.toIPv4Address(p.getTargetProtocolAddress())));
+            }
         }
         else if (pkt instanceof ICMP) {
             ICMP icmp = (ICMP) pkt;
@@ -24,7 +24,15 @@ import java.nio.ByteBuffer;
  * @author shudong.zhou@bigswitch.com
  */
 public class ICMP extends BasePacket {
+    public static final byte TYPE_ECHO_REPLY = 0x0;
+    public static final byte TYPE_DESTINATION_UNREACHABLE = 0x3;
     public static final byte TYPE_ECHO_REQUEST = 0x8;
+    public static final byte TYPE_TIME_EXCEEDED = 0xb;
+
+    public static final byte CODE_NET_UNREACHABLE = 0x0;
+    public static final byte CODE_HOST_UNREACHABLE = 0x1;
+    public static final byte CODE_PORT_UNREACHABLE = 0x3;
+    public static final byte CODE_TTL_EXCEEDED = 0x0;
 
     protected byte icmpType;
     protected byte icmpCode;
@@ -41,6 +49,8 @@ public class ICMP extends BasePacket {
      * @param icmpType to set
      */
     public ICMP setIcmpType(byte icmpType) {
+        this.updateChecksum((this.icmpType & 0xff) << 8,
+                (icmpType & 0xff) << 8);
         this.icmpType = icmpType;
         return this;
     }
@@ -56,6 +66,7 @@ public class ICMP extends BasePacket {
      * @param icmpCode code to set
      */
     public ICMP setIcmpCode(byte icmpCode) {
+        this.updateChecksum(this.icmpCode & 0xff, icmpCode & 0xff);
         this.icmpCode = icmpCode;
         return this;
     }
@@ -75,6 +86,15 @@ public class ICMP extends BasePacket {
         return this;
     }
 
+    /**
+     * Update the checksum for a change to the type or code, unless the
+     * checksum is 0 and so will be computed when the packet is serialized.
+     */
+    private void updateChecksum(int oldWord, int newWord) {
+        if (this.checksum != 0)
+            this.checksum = Checksum.update16(this.checksum, oldWord, newWord);
+    }
+
     /**
      * Serializes the packet. Will compute and set the following fields if they
      * are set to specific values at the time serialize is called:
@@ -115,8 +135,7 @@ public class ICMP extends BasePacket {
                 accumulation += (bb.get() & 0xff) << 8;
             }
 
-            accumulation = ((accumulation >> 16) & 0xffff)
-                    + (accumulation & 0xffff);
+            accumulation = Checksum.fold(accumulation);
             this.checksum = (short) (~accumulation & 0xffff);
             bb.putShort(2, this.checksum);
         }
@@ -79,7 +79,9 @@ public class IPv4 extends BasePacket {
      * @param version the version to set
      */
     public IPv4 setVersion(byte version) {
+        int oldWord = this.getFirstWord();
         this.version = version;
+        this.updateChecksum(oldWord, this.getFirstWord());
         return this;
     }
 
@@ -101,7 +103,9 @@ public class IPv4 extends BasePacket {
      * @param diffServ the diffServ to set
      */
     public IPv4 setDiffServ(byte diffServ) {
+        int oldWord = this.getFirstWord();
         this.diffServ = diffServ;
+        this.updateChecksum(oldWord, this.getFirstWord());
         return this;
     }
 
@@ -131,6 +135,7 @@ public class IPv4 extends BasePacket {
      * @param identification the identification to set
      */
     public IPv4 setIdentification(short identification) {
+        this.updateChecksum(this.identification, identification);
         this.identification = identification;
         return this;
     }
@@ -146,7 +151,9 @@ public class IPv4 extends BasePacket {
      * @param flags the flags to set
      */
     public IPv4 setFlags(byte flags) {
+        int oldWord = this.getFragmentWord();
         this.flags = flags;
+        this.updateChecksum(oldWord, this.getFragmentWord());
         return this;
     }
 
@@ -161,7 +168,9 @@ public class IPv4 extends BasePacket {
      * @param fragmentOffset the fragmentOffset to set
      */
     public IPv4 setFragmentOffset(short fragmentOffset) {
+        int oldWord = this.getFragmentWord();
         this.fragmentOffset = fragmentOffset;
+        this.updateChecksum(oldWord, this.getFragmentWord());
         return this;
     }
 
@@ -173,9 +182,12 @@ public class IPv4 extends BasePacket {
     }
 
     /**
+     * Sets the ttl. If the packet has a checksum, it is updated to match,
+     * so decrementing the ttl of a received packet keeps its checksum valid.
      * @param ttl the ttl to set
      */
     public IPv4 setTtl(byte ttl) {
+        this.updateChecksum((this.ttl & 0xff) << 8, (ttl & 0xff) << 8);
         this.ttl = ttl;
         return this;
     }
@@ -191,6 +203,7 @@ public class IPv4 extends BasePacket {
      * @param protocol the protocol to set
      */
     public IPv4 setProtocol(byte protocol) {
+        this.updateChecksum(this.protocol & 0xff, protocol & 0xff);
         this.protocol = protocol;
         return this;
     }
@@ -223,9 +236,12 @@ public class IPv4 extends BasePacket {
     }
 
     /**
+     * Sets the sourceAddress. If the packet, or its TCP or UDP payload, has
+     * a checksum, the checksum is updated to match.
      * @param sourceAddress the sourceAddress to set
      */
     public IPv4 setSourceAddress(int sourceAddress) {
+        this.updateAddressChecksums(this.sourceAddress, sourceAddress);
         this.sourceAddress = sourceAddress;
         return this;
     }
@@ -234,8 +250,7 @@ public class IPv4 extends BasePacket {
      * @param sourceAddress the sourceAddress to set
      */
     public IPv4 setSourceAddress(String sourceAddress) {
-        this.sourceAddress = IPv4.toIPv4Address(sourceAddress);
-        return this;
+        return this.setSourceAddress(IPv4.toIPv4Address(sourceAddress));
     }
 
     /**
@@ -246,9 +261,13 @@ public class IPv4 extends BasePacket {
     }
 
     /**
+     * Sets the destinationAddress. If the packet, or its TCP or UDP payload,
+     * has a checksum, the checksum is updated to match.
      * @param destinationAddress the destinationAddress to set
      */
     public IPv4 setDestinationAddress(int destinationAddress) {
+        this.updateAddressChecksums(this.destinationAddress,
+                destinationAddress);
         this.destinationAddress = destinationAddress;
         return this;
     }
@@ -257,8 +276,8 @@ public class IPv4 extends BasePacket {
      * @param destinationAddress the destinationAddress to set
      */
     public IPv4 setDestinationAddress(String destinationAddress) {
-        this.destinationAddress = IPv4.toIPv4Address(destinationAddress);
-        return this;
+        return this.setDestinationAddress(
+                IPv4.toIPv4Address(destinationAddress));
     }
 
     /**
@@ -279,6 +298,50 @@ public class IPv4 extends BasePacket {
         return this;
     }
 
+    /**
+     * Update the header checksum for a change to a 16-bit word of the
+     * header, unless the checksum is 0 and so will be computed when the
+     * packet is serialized.
+     */
+    private void updateChecksum(int oldWord, int newWord) {
+        if (this.checksum != 0)
+            this.checksum = Checksum.update16(this.checksum, oldWord, newWord);
+    }
+
+    /**
+     * Update the header checksum, and the checksum of a TCP or UDP payload,
+     * whose pseudo header holds the addresses, for a change to an address.
+     */
+    private void updateAddressChecksums(int oldAddress, int newAddress) {
+        if (this.checksum != 0)
+            this.checksum = Checksum.update32(this.checksum, oldAddress,
+                    newAddress);
+
+        // Only the first fragment holds the TCP or UDP header
+        if (this.fragmentOffset != 0)
+            return;
+        if (this.payload instanceof TCP)
+            ((TCP) this.payload).updateAddressChecksum(oldAddress, newAddress);
+        else if (this.payload instanceof UDP)
+            ((UDP) this.payload).updateAddressChecksum(oldAddress, newAddress);
+    }
+
+    /**
+     * @return the header's first 16-bit word: version, header length, and
+     *         diffServ
+     */
+    private int getFirstWord() {
+        return ((this.version & 0xf) << 12) | ((this.headerLength & 0xf) << 8)
+                | (this.diffServ & 0xff);
+    }
+
+    /**
+     * @return the header's fourth 16-bit word: flags and fragment offset
+     */
+    private int getFragmentWord() {
+        return ((this.flags & 0x7) << 13) | (this.fragmentOffset & 0x1fff);
+    }
+
     /**
      * Serializes the packet. Will compute and set the following fields if they
      * are set to specific values at the time serialize is called:
@@ -326,8 +389,7 @@ public class IPv4 extends BasePacket {
             for (int i = 0; i < this.headerLength * 2; ++i) {
                 accumulation += 0xffff & bb.getShort();
             }
-            accumulation = ((accumulation >> 16) & 0xffff)
-                    + (accumulation & 0xffff);
+            accumulation = Checksum.fold(accumulation);
             this.checksum = (short) (~accumulation & 0xffff);
             bb.putShort(10, this.checksum);
         }
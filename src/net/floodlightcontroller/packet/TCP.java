@@ -46,6 +46,7 @@ public class TCP extends BasePacket {
      * @param sourcePort the sourcePort to set
      */
     public TCP setSourcePort(short sourcePort) {
+        this.updateChecksum(this.sourcePort, sourcePort);
         this.sourcePort = sourcePort;
         return this;
     }
@@ -61,6 +62,7 @@ public class TCP extends BasePacket {
      * @param destinationPort the destinationPort to set
      */
     public TCP setDestinationPort(short destinationPort) {
+        this.updateChecksum(this.destinationPort, destinationPort);
         this.destinationPort = destinationPort;
         return this;
     }
@@ -144,6 +146,26 @@ public class TCP extends BasePacket {
         return this;
     }
 
+    /**
+     * Update the checksum for a change to a 16-bit word it covers, unless
+     * the checksum is 0 and so will be computed when the packet is
+     * serialized.
+     */
+    private void updateChecksum(short oldWord, short newWord) {
+        if (this.checksum != 0)
+            this.checksum = Checksum.update16(this.checksum, oldWord, newWord);
+    }
+
+    /**
+     * Update the checksum for a change to an IPv4 address in the pseudo
+     * header, unless the checksum is 0.
+     */
+    void updateAddressChecksum(int oldAddress, int newAddress) {
+        if (this.checksum != 0)
+            this.checksum = Checksum.update32(this.checksum, oldAddress,
+                    newAddress);
+    }
+
     /**
      * Serializes the packet. Will compute and set the following fields if they
      * are set to specific values at the time serialize is called:
@@ -210,8 +232,7 @@ public class TCP extends BasePacket {
                 accumulation += (bb.get() & 0xff) << 8;
             }
 
-            accumulation = ((accumulation >> 16) & 0xffff)
-                    + (accumulation & 0xffff);
+            accumulation = Checksum.fold(accumulation);
             this.checksum = (short) (~accumulation & 0xffff);
             bb.putShort(16, this.checksum);
         }
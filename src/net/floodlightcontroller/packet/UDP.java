@@ -52,6 +52,7 @@ public class UDP extends BasePacket {
      * @param sourcePort the sourcePort to set
      */
     public UDP setSourcePort(short sourcePort) {
+        this.updateChecksum(this.sourcePort, sourcePort);
         this.sourcePort = sourcePort;
         return this;
     }
@@ -67,6 +68,7 @@ public class UDP extends BasePacket {
      * @param destinationPort the destinationPort to set
      */
     public UDP setDestinationPort(short destinationPort) {
+        this.updateChecksum(this.destinationPort, destinationPort);
         this.destinationPort = destinationPort;
         return this;
     }
@@ -99,6 +101,32 @@ public class UDP extends BasePacket {
         super.resetChecksum();
     }
 
+    /**
+     * Update the checksum for a change to a 16-bit word it covers, unless
+     * the checksum is 0 and so will be computed when the packet is
+     * serialized.
+     */
+    private void updateChecksum(short oldWord, short newWord) {
+        if (this.checksum != 0)
+            this.setUpdatedChecksum(
+                    Checksum.update16(this.checksum, oldWord, newWord));
+    }
+
+    /**
+     * Update the checksum for a change to an IPv4 address in the pseudo
+     * header, unless the checksum is 0.
+     */
+    void updateAddressChecksum(int oldAddress, int newAddress) {
+        if (this.checksum != 0)
+            this.setUpdatedChecksum(
+                    Checksum.update32(this.checksum, oldAddress, newAddress));
+    }
+
+    private void setUpdatedChecksum(short checksum) {
+        // A checksum that computes to 0 is sent as all ones (RFC 768)
+        this.checksum = (checksum == 0) ? (short) 0xffff : checksum;
+    }
+
     /**
      * Serializes the packet. Will compute and set the following fields if they
      * are set to specific values at the time serialize is called:
@@ -152,8 +180,7 @@ public class UDP extends BasePacket {
                 accumulation += (bb.get() & 0xff) << 8;
             }
 
-            accumulation = ((accumulation >> 16) & 0xffff)
-                    + (accumulation & 0xffff);
+            accumulation = Checksum.fold(accumulation);
             this.checksum = (short) (~accumulation & 0xffff);
             bb.putShort(6, this.checksum);
         }